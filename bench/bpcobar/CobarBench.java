@@ -0,0 +1,123 @@
+package bpcobar;
+
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* JMH benchmarks for the cobar engine. build and run them with ./make-bench.
+ *
+ * each benchmark runs with warm caches, which persist across invocations, and with cold
+ * ones, where every Memo is emptied before each invocation. make-bench turns on the gc
+ * profiler, which reports allocation rates next to the timings. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class CobarBench
+{
+    /* the structure formulas, on single monomials. the same exponents are read as a t-, m- or
+     * v-monomial as each benchmark needs. */
+    @State(Scope.Benchmark)
+    public static class Formulas
+    {
+        @Param({"x3", "x4", "x1^4x2^2", "x2^3x3"})
+        public String monomial;
+
+        @Param({"warm", "cold"})
+        public String caches;
+
+        Monom mon;
+
+        @Setup(Level.Trial)
+        public void parse() {
+            mon = Monom.parse(monomial, "x");
+        }
+
+        @Setup(Level.Invocation)
+        public void clear() {
+            if(caches.equals("cold")) Memo.clearAll();
+        }
+    }
+
+    /* whole elements, as typed at the prompt, with the inputs of each phase of vToVBoundary
+     * worked out ahead of time */
+    @State(Scope.Benchmark)
+    public static class Elements
+    {
+        @Param({"v1^2 [t2 | t1]", "v2 [t1^2 t2 | t3] + v3", "v3^2 [t1 t2]", "v2^2 [t2 t3 | t1^4]"})
+        public String element;
+
+        @Param({"warm", "cold"})
+        public String caches;
+
+        RSet<BPCobar> inV, inM, bound;
+
+        /* the normalizeCobar calls made by the middle cofaces of boundary() on inM */
+        List<Object[]> reductions = new ArrayList<Object[]>();
+
+        @Setup(Level.Trial)
+        public void parse() {
+            inV = BPCobarMain.parse(element);
+            inM = Par.map(inV, BPCobar.VTOM);
+            bound = Par.map(inM, BPCobar.BOUNDARY);
+
+            for(BPCobar b : inM.keySet()) {
+                for(int i = 0; i < b.entries.length; i++) {
+                    for(DiagonalEntry de : b.entries[i].diagonal().keySet()) {
+                        Monom[] after = new Monom[b.entries.length - i + 1];
+                        after[0] = de.a;
+                        after[1] = de.b;
+                        for(int j = i+1; j < b.entries.length; j++)
+                            after[j-i+1] = b.entries[j];
+                        reductions.add(new Object[] { b.coeff, Arrays.copyOf(b.entries, i), de.coeff, after });
+                    }
+                }
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void clear() {
+            if(caches.equals("cold")) Memo.clearAll();
+        }
+    }
+
+    @Benchmark public Object diagonal(Formulas f) {
+        return f.mon.diagonal();
+    }
+
+    @Benchmark public Object rightUnit(Formulas f) {
+        return f.mon.rightUnit();
+    }
+
+    @Benchmark public Object mToV(Formulas f) {
+        return f.mon.mToV();
+    }
+
+    @Benchmark public Object vToM(Formulas f) {
+        return f.mon.vToM();
+    }
+
+    @Benchmark public void normalizeCobar(Elements e, Blackhole bh) {
+        for(Object[] r : e.reductions)
+            bh.consume(BPCobar.normalizeCobar((Monom) r[0], (Monom[]) r[1], (Monom) r[2], (Monom[]) r[3]));
+    }
+
+    @Benchmark public Object vToMPhase(Elements e) {
+        return Par.map(e.inV, BPCobar.VTOM);
+    }
+
+    @Benchmark public Object boundary(Elements e) {
+        return Par.map(e.inM, BPCobar.BOUNDARY);
+    }
+
+    @Benchmark public Object mToVPhase(Elements e) {
+        return Par.map(e.bound, BPCobar.MTOV);
+    }
+
+    @Benchmark public Object vToVBoundary(Elements e) {
+        return BPCobarMain.vToVBoundary(e.inV);
+    }
+}
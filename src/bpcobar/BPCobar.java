@@ -4,22 +4,225 @@ import java.math.BigInteger;
 import java.io.*;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 class BPCobarMain
 {
-    static final int P = 2;
     static final boolean DEBUG = false;
 
+    static File cacheFile = null;
+    static boolean cacheStats = DEBUG;
+    static boolean printStats = false;
+    static String batchIn = null, batchOut = null;
+    static long modulus = 0;
+    static int guard = -1;
+    static int prime = 0;
+    static int precompute = -1;
+    static int matrixS = -1, matrixDegree;
+    static String matrixPrefix = null;
+    static int extS = -1, extDegree;
+    static int serverPort = -1;
+    static File coordinateDir = null, workDir = null;
+    static int shards = 16, workers = 1;
+    static String select = null;
+
     public static void main(String[] args) throws IOException
+    {
+        for(int i = 0; i < args.length; i++) {
+            if((args[i].equals("-t") || args[i].equals("--threads")) && i+1 < args.length) {
+                Par.setThreads(Integer.parseInt(args[++i]));
+            } else if(args[i].equals("--cache") && i+1 < args.length) {
+                cacheFile = new File(args[++i]);
+            } else if(args[i].equals("--cache-budget") && i+1 < args.length) {
+                Memo.budget = Memo.parseBudget(args[++i]);
+            } else if(args[i].equals("--cache-policy") && i+1 < args.length) {
+                Memo.policy = Memo.Policy.valueOf(args[++i].toUpperCase());
+            } else if(args[i].equals("--cache-stats")) {
+                cacheStats = true;
+            } else if(args[i].equals("--stats")) {
+                Stats.enabled = printStats = true;
+            } else if(args[i].equals("--jmx")) {
+                Stats.enabled = true;
+                Stats.register();
+            } else if(args[i].equals("--format") && i+1 < args.length) {
+                Printer.style = Printer.Style.valueOf(args[++i].toUpperCase());
+            } else if(args[i].equals("--batch") && i+1 < args.length) {
+                batchIn = args[++i];
+            } else if((args[i].equals("-o") || args[i].equals("--output")) && i+1 < args.length) {
+                batchOut = args[++i];
+            } else if(args[i].equals("--prime") && i+1 < args.length) {
+                prime = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--mod") && i+1 < args.length) {
+                modulus = Long.parseLong(args[++i]);
+            } else if(args[i].equals("--guard") && i+1 < args.length) {
+                guard = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--max-degree") && i+1 < args.length) {
+                BPCobar.maxDegree = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--max-v1") && i+1 < args.length) {
+                BPCobar.maxV1 = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--precompute") && i+1 < args.length) {
+                precompute = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--matrix") && i+3 < args.length) {
+                matrixS = Integer.parseInt(args[++i]);
+                matrixDegree = Integer.parseInt(args[++i]);
+                matrixPrefix = args[++i];
+            } else if(args[i].equals("--ext") && i+2 < args.length) {
+                extS = Integer.parseInt(args[++i]);
+                extDegree = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--serve") && i+1 < args.length) {
+                serverPort = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--coordinate") && i+1 < args.length) {
+                coordinateDir = new File(args[++i]);
+            } else if(args[i].equals("--shards") && i+1 < args.length) {
+                shards = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--workers") && i+1 < args.length) {
+                workers = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--work") && i+1 < args.length) {
+                workDir = new File(args[++i]);
+            } else if(args[i].equals("--leibniz")) {
+                BPCobar.leibniz = true;
+            } else if(args[i].equals("--ideal") && i+1 < args.length) {
+                BPCobar.ideal = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--select") && i+1 < args.length) {
+                select = args[++i];
+            } else {
+                System.err.println("Usage: bpcobar [-t|--threads N] [--cache FILE] [--cache-budget SIZE] [--cache-policy lru|cost] [--cache-stats] [--stats] [--jmx]");
+                System.err.println("               [--format pretty|terse|machine] [--batch FILE|- [-o|--output FILE]] [--prime P] [--mod P^K [--guard G]]");
+                System.err.println("               [--max-degree D] [--max-v1 E] [--ideal N] [--precompute D] [--matrix S DEG PREFIX] [--ext S DEG] [--serve PORT] [--leibniz]");
+                System.err.println("               [--select PATTERNS]");
+                System.err.println("               [--coordinate DIR [--shards K] [--workers N] [-o FILE] | --work DIR]");
+                System.exit(1);
+            }
+        }
+
+        if(prime != 0) {
+            try {
+                Ring.setPrime(prime);
+            } catch(IllegalArgumentException err) {
+                System.err.println("--prime: "+err.getMessage());
+                System.exit(1);
+            }
+        }
+
+        /* BP_* / I_n has F_p coefficients */
+        if(BPCobar.ideal > 0) {
+            if(modulus != 0 && modulus != Ring.p) {
+                System.err.println("--ideal: coefficients are mod "+Ring.p+"; --mod "+modulus+" makes no sense");
+                System.exit(1);
+            }
+            modulus = Ring.p;
+        }
+
+        if(modulus != 0) {
+            try {
+                Ring.setModulus(modulus, guard);
+            } catch(IllegalArgumentException err) {
+                System.err.println("--mod: "+err.getMessage());
+                System.exit(1);
+            }
+        }
+
+        /* after --prime, since monomials know their degree */
+        /* a truncated d is no longer a differential: d^2 != 0 */
+        if((BPCobar.maxDegree != Integer.MAX_VALUE || BPCobar.maxV1 != Integer.MAX_VALUE) && (matrixPrefix != null || extS >= 0)) {
+            System.err.println("--max-degree, --max-v1: --matrix and --ext need whole boundaries");
+            System.exit(1);
+        }
+
+        if(select != null) {
+            if(matrixPrefix != null || extS >= 0) {
+                System.err.println("--select: --matrix and --ext need whole boundaries");
+                System.exit(1);
+            }
+            if((Select.patterns = Select.parse(select)) == null) {
+                System.err.println("--select: couldn't parse "+select);
+                System.exit(1);
+            }
+        }
+
+        if(cacheFile != null && cacheFile.exists())
+            CacheFile.load(cacheFile);
+
+        if(precompute >= 0)
+            Precompute.run(precompute);
+
+        if(matrixPrefix != null) {
+            Matrix.export(matrixS, matrixDegree, matrixPrefix);
+        } else if(extS >= 0) {
+            Ext.run(extS, extDegree, System.out);
+        } else if(serverPort >= 0) {
+            Server.run(serverPort);
+        } else if(coordinateDir != null) {
+            coordinate(args);
+        } else if(workDir != null) {
+            Shards.work(workDir);
+        } else if(batchIn != null) {
+            BufferedReader in = new BufferedReader(batchIn.equals("-") ? new InputStreamReader(System.in) : new FileReader(batchIn));
+            PrintWriter out = new PrintWriter(new BufferedWriter(batchOut == null ? new OutputStreamWriter(System.out) : new FileWriter(batchOut)));
+            Batch.run(in, out);
+            out.close();
+            in.close();
+        } else repl(new BufferedReader(new InputStreamReader(System.in)));
+
+        if(cacheFile != null)
+            CacheFile.save(cacheFile);
+    }
+
+    /* reads one element, possibly over several lines, from stdin and has it computed in shards */
+    static void coordinate(String[] args) throws IOException
     {
         BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        StringBuilder elt = new StringBuilder();
+        String line;
+        while((line = in.readLine()) != null) {
+            line = line.trim();
+            if(line.length() > 0 && ! line.startsWith("#"))
+                elt.append(' ').append(line);
+        }
+        RSet<BPCobar> initial = parse(elt.toString());
+        if(initial == null) {
+            System.err.println("Couldn't parse the element");
+            System.exit(1);
+        }
+
+        /* the workers get the same options, less those that only concern the coordinator */
+        List<String> options = new ArrayList<String>();
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("--coordinate") || args[i].equals("--shards") || args[i].equals("--workers")
+                    || args[i].equals("-o") || args[i].equals("--output"))
+                i++;
+            else options.add(args[i]);
+        }
+
+        RSet<BPCobar> result = Shards.coordinate(coordinateDir, initial, shards, workers, options);
+        Writer out = new BufferedWriter(batchOut == null ? new OutputStreamWriter(System.out) : new FileWriter(batchOut));
+        try {
+            new Printer(out).println(result);
+        } finally {
+            out.close();
+        }
+    }
 
+    static void repl(BufferedReader in) throws IOException
+    {
         while(true) {
             System.out.print("bpcobar> ");
             String line = in.readLine();
+            if(line == null)
+                break;
             line = line.trim();
             if(line.length() == 0)
                 break;
+
+            /* "x > file" sends the result to a file */
+            String target = null;
+            int gt = line.indexOf('>');
+            if(gt >= 0) {
+                target = line.substring(gt+1).trim();
+                line = line.substring(0,gt).trim();
+            }
             
             RSet<BPCobar> initial = parse(line);
             if(initial == null) {
@@ -28,46 +231,92 @@ class BPCobarMain
             }
             System.out.println("Parsed as "+initial);
             System.out.println();
-            System.out.println(vToVBoundary(initial));
+            RSet<BPCobar> result = vToVBoundary(initial);
+
+            if(target != null) {
+                Writer out = new BufferedWriter(new FileWriter(target));
+                try {
+                    new Printer(out).println(result);
+                } finally {
+                    out.close();
+                }
+                System.out.println("Wrote "+result.size()+" terms to "+target);
+            } else {
+                Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+                new Printer(out).println(result);
+                out.flush();
+            }
 
-            if(DEBUG) {
+            if(printStats) {
                 System.out.println();
-                System.out.println("Cache stats:");
-                System.out.println("diagonalCache: "+Monom.diagonalCache.size());
-                System.out.println("rightUnitCache: "+Monom.rightUnitCache.size());
-                System.out.println("mToVCache: "+Monom.mToVCache.size());
-                System.out.println("vToMCache: "+Monom.vToMCache.size());
+                Stats.last().report(new PrintWriter(System.out), "");
+            }
+            if(cacheStats) {
+                System.out.println();
+                Memo.report(System.out);
             }
         }
     }
 
     static RSet<BPCobar> vToVBoundary(RSet<BPCobar> initial)
     {
+        return descale(scaledBoundary(initial));
+    }
+
+    /* the boundary as computed: in modular mode, p^GUARD times its value (see BPCobar.mToV).
+     * sums of boundaries, as the coordinator makes, must be added up before descale() */
+    static RSet<BPCobar> scaledBoundary(RSet<BPCobar> initial)
+    {
+        if(Select.patterns != null)
+            return Select.scaledBoundary(initial);
+
+        Stats.Run st = Stats.enabled ? new Stats.Run() : null;
 
-        RSet<BPCobar> inM = new RSet<BPCobar>();
-        for(Entry<BPCobar,Q> e : initial.entrySet())
-            inM.add(e.getKey().vToM(), e.getValue());
+        RSet<BPCobar> inM = phase(st, Stats.VTOM, initial, BPCobar.VTOM);
         if(DEBUG) System.out.println("In m: "+inM);
 
-        RSet<BPCobar> bound = new RSet<BPCobar>();
-        for(Entry<BPCobar,Q> e : inM.entrySet())
-            bound.add(e.getKey().boundary(), e.getValue());
+        RSet<BPCobar> bound = phase(st, Stats.BOUNDARY, inM, BPCobar.BOUNDARY);
         if(DEBUG) System.out.println("Boundary in m: "+bound);
 
-        RSet<BPCobar> inV = new RSet<BPCobar>();
-        for(Entry<BPCobar,Q> e : bound.entrySet())
-            inV.add(e.getKey().mToV(), e.getValue());
+        RSet<BPCobar> inV = phase(st, Stats.MTOV, bound, BPCobar.MTOV);
         if(DEBUG) System.out.println("Boundary in v: "+inV + "\n");
 
+        if(st != null) st.finish();
         return inV;
     }
 
+    /* in modular mode, brings a scaledBoundary() down to residues mod p^K */
+    static RSet<BPCobar> descale(RSet<BPCobar> r)
+    {
+        if(Q.MOD == 0)
+            return r;
+        RSet<BPCobar> ret = new RSet<BPCobar>();
+        for(Entry<BPCobar,Q> e : r.entrySet())
+            ret.add(e.getKey(), e.getValue().descale());
+        return ret;
+    }
+
+    static RSet<BPCobar> phase(Stats.Run st, int ph, RSet<BPCobar> in, Linear<BPCobar,BPCobar> f)
+    {
+        if(st == null)
+            return Par.map(in, f);
+
+        st.begin(ph, in.size());
+        RSet<BPCobar> ret = Par.map(in, st.watch(f));
+        st.end(ret.size());
+        return ret;
+    }
+
+    /* an element as typed, or as printed in the terse style; "0" is the empty sum, which is how
+     * Printer prints it */
     static RSet<BPCobar> parse(String line)
     {
         String[] tok = line.split("\\+");
         RSet<BPCobar> ret = new RSet<BPCobar>();
         for(String s : tok) {
             s = s.trim();
+            if(s.equals("0"))
+                continue;
             int idx = s.indexOf('*');
             Q coeff = Q.ONE;
             if(idx > 0)
@@ -82,12 +331,47 @@ class BPCobarMain
     }
 }
 
-class BPCobar implements Comparable<BPCobar>
+class BPCobar implements Comparable<BPCobar>, Printer.Printable
 {
     Monom/*M or V*/ coeff;
     Monom/*T*/[] entries;
     boolean inV = false;
 
+    /* truncation: only terms whose coefficient has internal degree at most maxDegree and
+     * involves v1 at most maxV1 times are wanted. both can be judged in the m basis already --
+     * the change of basis preserves degree, and the image of m1^e X in v is divisible by v1^e --
+     * and multiplying coefficients only raises them, so out-of-range terms are dropped as soon
+     * as they appear. */
+    static int maxDegree = Integer.MAX_VALUE;
+    static int maxV1 = Integer.MAX_VALUE;
+
+    /* when positive, the computation is in the cobar complex for BP_* / I_n, n = ideal, where
+     * I_n = (p, v1, ..., v_{n-1}); coefficients are then mod p (see BPCobarMain). the image of
+     * m_j in v, times p^j, lies in (v1, ..., v_j), so a coefficient involving any m_j with
+     * j < n goes to 0 just as a v-monomial involving v_j does. */
+    static int ideal = 0;
+
+    static boolean inIdeal(Monom/*M or V*/ c) {
+        for(int i = 0; i < ideal - 1 && i < c.exp.length; i++)
+            if(c.exp[i] != 0)
+                return true;
+        return false;
+    }
+
+    static boolean inRange(Monom/*M or V*/ c) {
+        return c.degree() <= maxDegree && c.v1() <= maxV1 && ! inIdeal(c);
+    }
+
+    static final Linear<BPCobar,BPCobar> VTOM = new Linear<BPCobar,BPCobar>() {
+        @Override public RSet<BPCobar> apply(BPCobar b) { return b.vToM(); }
+    };
+    static final Linear<BPCobar,BPCobar> BOUNDARY = new Linear<BPCobar,BPCobar>() {
+        @Override public RSet<BPCobar> apply(BPCobar b) { return b.boundary(); }
+    };
+    static final Linear<BPCobar,BPCobar> MTOV = new Linear<BPCobar,BPCobar>() {
+        @Override public RSet<BPCobar> apply(BPCobar b) { return b.mToV(); }
+    };
+
     BPCobar(Monom/*M*/ coeff, Monom/*T*/[] entries) {
         this.coeff = coeff;
         this.entries = entries;
@@ -107,19 +391,39 @@ class BPCobar implements Comparable<BPCobar>
             entries[i+1] = c[i];
     }
 
+    /* evaluate boundaries through the product (see productBoundary) */
+    static boolean leibniz = false;
+
     RSet<BPCobar> boundary() 
     {
-        RSet<BPCobar> ret = new RSet<BPCobar>();
+        if(leibniz)
+            return productBoundary();
 
-        /* first coface: 1 | right-unit of coeff */
-        RSet<MonomInMT> ru = coeff.rightUnit();
-        for(Entry<MonomInMT,Q> e : ru.entrySet()) {
-            MonomInMT mon = e.getKey();
-            ret.add(new BPCobar(mon.m, mon.t, entries), e.getValue());
-        }
+        /* the cofaces are independent, so in parallel mode they're evaluated as separate tasks */
+        return Par.sum(entries.length + 2, new Summand<BPCobar>() {
+            @Override public void addTo(int k, RSet<BPCobar> ret) {
+                coface(k, ret);
+            }
+        });
+    }
 
-        /* middle cofaces: use the diagonal and then reduce with right unit */
-        for(int i = 0; i < entries.length; i++) {
+    /* adds the k-th coface, with sign (-1)^k, to ret */
+    void coface(int k, RSet<BPCobar> ret)
+    {
+        if(k == 0) {
+            /* first coface: 1 | right-unit of coeff */
+            RSet<MonomInMT> ru = coeff.rightUnit();
+            for(Entry<MonomInMT,Q> e : ru.entrySet()) {
+                MonomInMT mon = e.getKey();
+                if(inRange(mon.m))
+                    ret.add(new BPCobar(mon.m, mon.t, entries), e.getValue());
+            }
+        } else if(! inRange(coeff)) {
+            /* the other cofaces only multiply coeff by something */
+            return;
+        } else if(k <= entries.length) {
+            /* middle cofaces: use the diagonal and then reduce with right unit */
+            int i = k - 1;
             RSet<DiagonalEntry> des = entries[i].diagonal();
             for(Entry<DiagonalEntry,Q> dee : des.entrySet()) {
                 DiagonalEntry de = dee.getKey();
@@ -128,39 +432,153 @@ class BPCobar implements Comparable<BPCobar>
                 after[1] = de.b;
                 for(int j = i+1; j < entries.length; j++)
                     after[j-i+1] = entries[j];
-                ret.add(normalizeCobar(coeff, Arrays.copyOf(entries,i), de.coeff, after), Q.sign(i+1).times(dee.getValue()));
+                normalizeCobar(coeff, entries, i, de.coeff, after, Q.sign(k).times(dee.getValue()), ret);
             }
+        } else {
+            /* last coface: 1 | 1 */
+            ret.add(extendByOne(), Q.sign(k)); 
+        }
+    }
+
+    /* c [ w ] is the product of c, [ w1 | ... | w(s-1) ] and [ ws ], so by the Leibniz rule its
+     * boundary is d(c) [ w ] + c d[ w ]. d(c) [ w ] is the first coface, and of d[ w ] only the
+     * middle cofaces take any work: those are kept for each word, and built up from the ones of
+     * its prefixes -- see middle(). words, and so their prefixes, recur far more often than
+     * whole terms do. */
+    RSet<BPCobar> productBoundary()
+    {
+        RSet<BPCobar> ret = new RSet<BPCobar>();
+        coface(0, ret);
+        if(! inRange(coeff))
+            return ret;
+
+        for(Entry<BPCobar,Q> e : middle(entries).entrySet()) {
+            Monom/*M*/ c = coeff.times(e.getKey().coeff);
+            if(inRange(c))
+                ret.add(new BPCobar(c, e.getKey().entries), e.getValue());
         }
+        coface(entries.length + 1, ret);
+        return ret;
+    }
+
+    /* the sum of the middle cofaces of [ w ], with their signs. with w = u | t, the k-th
+     * of these is the k-th of [ u ] followed by t for k <= |u|, leaving the one that
+     * applies the diagonal to t and pushes its coefficient back through u. */
+    static RSet<BPCobar> middle(Monom/*T*/[] w)
+    {
+        if(w.length == 0)
+            return new RSet<BPCobar>();
+        return middleCache.get(new BPCobar(Monom.ONE, w));
+    }
+
+    static Memo<BPCobar,RSet<BPCobar>> middleCache = new Memo<BPCobar,RSet<BPCobar>>("middleCache") {
+        @Override RSet<BPCobar> compute(BPCobar b) { return computeMiddle(b.entries); }
+    };
+
+    private static RSet<BPCobar> computeMiddle(Monom/*T*/[] w)
+    {
+        int r = w.length - 1;
+        Monom/*T*/[] u = Arrays.copyOf(w, r);
+        RSet<BPCobar> ret = new RSet<BPCobar>();
 
-        /* last coface: 1 | 1 */
-        ret.add(extendByOne(), Q.sign(entries.length+1)); 
+        for(Entry<BPCobar,Q> e : middle(u).entrySet()) {
+            BPCobar b = e.getKey();
+            Monom/*T*/[] ent = Arrays.copyOf(b.entries, b.entries.length + 1);
+            ent[b.entries.length] = w[r];
+            ret.add(new BPCobar(b.coeff, ent), e.getValue());
+        }
 
+        for(Entry<DiagonalEntry,Q> dee : w[r].diagonal().entrySet()) {
+            DiagonalEntry de = dee.getKey();
+            normalizeCobar(Monom.ONE, u, r, de.coeff, new Monom/*T*/[] {de.a, de.b}, Q.sign(r+1).times(dee.getValue()), ret);
+        }
         return ret;
     }
 
     static RSet<BPCobar> normalizeCobar(Monom/*M*/ coeff, Monom/*T*/[] before, Monom/*M*/ mid, Monom/*T*/[] after)
+    {
+        RSet<BPCobar> ret = new RSet<BPCobar>();
+        normalizeCobar(coeff, before, before.length, mid, after, Q.ONE, ret);
+        return ret;
+    }
+
+    /* adds q coeff [ before[0..n) | mid after ] to ret, rewritten with mid moved to the front */
+    static void normalizeCobar(Monom/*M*/ coeff, Monom/*T*/[] before, int n, Monom/*M*/ mid, Monom/*T*/[] after, Q q, RSet<BPCobar> ret)
     {
         /* base case */
-        if(before.length == 0) {
+        if(n == 0) {
             Monom/*M*/ c = coeff.times(mid);
-            return new RSet<BPCobar>(new BPCobar(c,after));
+            if(inRange(c))
+                ret.add(new BPCobar(c, after), q);
+            return;
         }
 
+        RSet<BPCobar> pushed = pushCache.get(new BPCobar(mid, Arrays.copyOf(before, n)));
+        for(Entry<BPCobar,Q> e : pushed.entrySet()) {
+            BPCobar b = e.getKey();
+            Monom/*M*/ c = coeff.times(b.coeff);
+            if(! inRange(c))
+                continue;
+            Monom/*T*/[] entries = Arrays.copyOf(b.entries, n + after.length);
+            System.arraycopy(after, 0, entries, n, after.length);
+            ret.add(new BPCobar(c, entries), q.times(e.getValue()));
+        }
+    }
+
+    /* [ before | mid ...] = sum m' [ t' | ... ], as the terms m' [ t' ]. this depends only on
+     * mid and the prefix, and the same pairs come up again and again: in every middle coface
+     * of a word, for every term of its diagonal, and across similar inputs. */
+    static Memo<BPCobar,RSet<BPCobar>> pushCache = new Memo<BPCobar,RSet<BPCobar>>("pushCache") {
+        @Override RSet<BPCobar> compute(BPCobar b) { return push(b.coeff, b.entries); }
+    };
+
+    /* mid is pushed left through before[n-1], ..., before[0] with the right unit, one entry at a
+     * time. this is a depth-first walk over the choices of right-unit term at each entry; the
+     * entries produced so far sit in one buffer, which is only copied when a term is finished. */
+    private static RSet<BPCobar> push(Monom/*M*/ mid, Monom/*T*/[] before)
+    {
+        int n = before.length;
         RSet<BPCobar> ret = new RSet<BPCobar>();
+        Monom/*T*/[] buf = new Monom/*T*/[n];
+
+        /* at level k, mid is being pushed through before[k-1]: its[k] runs over the right
+         * unit of the mid at that level, and qs[k] is the coefficient picked up above it */
+        List<Iterator<Entry<MonomInMT,Q>>> its = new ArrayList<Iterator<Entry<MonomInMT,Q>>>(n+1);
+        for(int k = 0; k <= n; k++)
+            its.add(null);
+        Q[] qs = new Q[n+1];
 
-        /* reduction */
         RSet<MonomInMT> ru = mid.rightUnit();
-        Monom/*T*/[] newbefore = Arrays.copyOf(before, before.length - 1);
-        Monom/*T*/ b = before[before.length - 1];
-        for(Entry<MonomInMT,Q> e : ru.entrySet()) {
-            MonomInMT mon = e.getKey();
-            Monom/*T*/[] newafter = new Monom/*T*/[after.length + 1];
-            for(int i = 0; i < after.length; i++)
-                newafter[i+1] = after[i];
-            newafter[0] = b.times(mon.t);
-            RSet<BPCobar> red = normalizeCobar(coeff, newbefore, mon.m, newafter);
+        if(Stats.enabled) Stats.reduction(n, ru.size());
+        its.set(n, ru.entrySet().iterator());
+        qs[n] = Q.ONE;
+
+        int k = n;
+        while(k <= n) {
+            Iterator<Entry<MonomInMT,Q>> it = its.get(k);
+            if(! it.hasNext()) {
+                k++;
+                continue;
+            }
 
-            ret.add(red, e.getValue());
+            Entry<MonomInMT,Q> e = it.next();
+            MonomInMT mon = e.getKey();
+            Q qq = qs[k].times(e.getValue());
+            if(qq.isZero())
+                continue;
+            buf[k-1] = before[k-1].times(mon.t);
+
+            if(k == 1) {
+                /* coeff times mon.m is out of range if mon.m is */
+                if(inRange(mon.m))
+                    ret.add(new BPCobar(mon.m, buf.clone()), qq);
+            } else {
+                ru = mon.m.rightUnit();
+                if(Stats.enabled) Stats.reduction(k-1, ru.size());
+                k--;
+                its.set(k, ru.entrySet().iterator());
+                qs[k] = qq;
+            }
         }
 
         return ret;
@@ -175,9 +593,19 @@ class BPCobar implements Comparable<BPCobar>
 
         RSet<BPCobar> ret = new RSet<BPCobar>();
 
+        /* in modular mode, mToV() is off by p^h; bring every term to p^GUARD times its value */
+        Q scale = Q.ONE;
+        if(Q.MOD != 0) {
+            int h = coeff.height();
+            if(h > Q.GUARD)
+                throw new ArithmeticException("m-coefficient "+coeff+" needs "+h+" guard digits; only "+Q.GUARD+" are kept");
+            scale = Q.ppow(Q.GUARD - h);
+        }
+
         RSet<Monom/*V*/> vcoeff = coeff.mToV();
         for(Entry<Monom/*V*/,Q> ent : vcoeff.entrySet())
-            ret.add(new BPCobar(ent.getKey(), entries, true), ent.getValue());
+            if(ent.getKey().v1() <= maxV1 && ! inIdeal(ent.getKey()))
+                ret.add(new BPCobar(ent.getKey(), entries, true), ent.getValue().times(scale));
 
         return ret;
     }
@@ -190,6 +618,8 @@ class BPCobar implements Comparable<BPCobar>
         }
 
         RSet<BPCobar> ret = new RSet<BPCobar>();
+        if(inIdeal(coeff))
+            return ret;
 
         RSet<Monom/*M*/> mcoeff = coeff.vToM();
         for(Entry<Monom/*M*/,Q> ent : mcoeff.entrySet())
@@ -204,22 +634,14 @@ class BPCobar implements Comparable<BPCobar>
         return new BPCobar(coeff, newentries);
     }
 
-    @Override public String toString()
+    @Override public void print(Printer p) throws IOException
     {
-        String ret = "";
-        if(! coeff.isOne())
-            ret += coeff.toString(inV ? 'v' : 'm') + " ";
-        ret += "[ ";
-
-        boolean first = true;
-        for(Monom e : entries) {
-            if(!first) ret += " | ";
-            first = false;
-            ret += e.toString('t');
-        }
-        ret += " ]";
+        p.print(this);
+    }
 
-        return ret;
+    @Override public String toString()
+    {
+        return Printer.toString(this);
     }
 
     @Override public int compareTo(BPCobar o)
@@ -236,6 +658,30 @@ class BPCobar implements Comparable<BPCobar>
         return 0;
     }
 
+    /* like compareTo, ignores inV. monomials are interned, so compare them by reference */
+    @Override public boolean equals(Object other)
+    {
+        if(this == other) return true;
+        if(! (other instanceof BPCobar)) return false;
+        BPCobar o = (BPCobar) other;
+        if(coeff != o.coeff || entries.length != o.entries.length) return false;
+        for(int i = 0; i < entries.length; i++)
+            if(entries[i] != o.entries[i]) return false;
+        return true;
+    }
+
+    private int hash = 0;
+    @Override public int hashCode()
+    {
+        if(hash == 0) {
+            int h = coeff.hashCode();
+            for(Monom e : entries)
+                h = 31 * h + e.hashCode();
+            hash = (h == 0) ? 1 : h;
+        }
+        return hash;
+    }
+
     static BPCobar parse(String s, boolean isV)
     {
         s = s.trim();
@@ -268,24 +714,86 @@ class BPCobar implements Comparable<BPCobar>
     }
 }
 
-class Monom implements Comparable<Monom>
+class Monom implements Comparable<Monom>, Printer.Printable
 {
-    public final static Monom ONE = new Monom(new int[] {});
+    /* monomials are hash-consed: of() hands out one shared instance per exponent vector, so
+     * equal monomials are identical and map lookups are a hash plus a reference compare.
+     * exponent vectors never carry trailing zeros. */
+    private final static ConcurrentMap<Monom,Monom> interned = new ConcurrentHashMap<Monom,Monom>();
+    public final static Monom ONE = of(new int[] {});
+
+    /* when there are at most PACKLEN generators, each with exponent below 2^PACKBITS, the
+     * exponents are also packed into lo and hi (first generator in the high bits of lo) so
+     * that unsigned comparison of the words agrees with comparison of the arrays. */
+    private final static int PACKBITS = 16;
+    private final static int PACKLEN = 128 / PACKBITS;
+
+    public final int[] exp; /* shared -- never modify */
+    private final boolean packed;
+    private final long lo, hi;
+    private final int hash;
+    private final int degree;
+
+    private Monom(int[] exp) {
+        this.exp = exp;
 
-    public int[] exp;
+        boolean pk = (exp.length <= PACKLEN);
+        long l = 0, h = 0;
+        for(int i = 0; pk && i < exp.length; i++) {
+            if(exp[i] >>> PACKBITS != 0) {
+                pk = false;
+                break;
+            }
+            long e = exp[i];
+            if(i < PACKLEN/2)
+                l |= e << (64 - PACKBITS * (i+1));
+            else
+                h |= e << (64 - PACKBITS * (i+1 - PACKLEN/2));
+        }
+        packed = pk;
+        lo = pk ? l : 0;
+        hi = pk ? h : 0;
 
-    Monom(int[] exp) {
-        this.exp = exp;
+        if(pk) {
+            long x = (l * 0x9E3779B97F4A7C15L) ^ (h + exp.length);
+            hash = (int) (x ^ (x >>> 32));
+        } else hash = Arrays.hashCode(exp);
+
+        int deg = 0, pi = 1;
+        for(int i = 0; i < exp.length; i++) {
+            pi *= Q.P;
+            deg += exp[i] * 2 * (pi - 1);
+        }
+        degree = deg;
+    }
+
+    /* the canonical monomial with these exponents. takes ownership of the array. */
+    static Monom of(int[] exp) {
+        int len = exp.length;
+        while(len > 0 && exp[len-1] == 0) len--;
+        if(len != exp.length)
+            exp = Arrays.copyOf(exp, len);
+
+        Monom probe = new Monom(exp);
+        Monom ret = interned.get(probe);
+        if(ret == null) {
+            ret = interned.putIfAbsent(probe, probe);
+            if(ret == null) ret = probe;
+        }
+        return ret;
     }
 
     static Monom singleton(int k, int e) {
-        if(k == 0) return ONE;
+        if(k == 0 || e == 0) return ONE;
         int[] exp = new int[k];
         exp[k-1] = e;
-        return new Monom(exp);
+        return of(exp);
     }
 
     Monom times(Monom o) {
+        if(o == ONE) return this;
+        if(this == ONE) return o;
+
         int[] a, b;
         if(exp.length > o.exp.length) {
             a = exp;
@@ -298,7 +806,70 @@ class Monom implements Comparable<Monom>
         int[] c = Arrays.copyOf(a, a.length);
         for(int i = 0; i < b.length; i++)
             c[i] += b[i];
-        return new Monom(c);
+        return of(c);
+    }
+
+    /* this / o, or null if o doesn't divide this */
+    Monom over(Monom o) {
+        if(o == ONE) return this;
+        if(o.exp.length > exp.length) return null;
+
+        int[] c = Arrays.copyOf(exp, exp.length);
+        for(int i = 0; i < o.exp.length; i++)
+            if((c[i] -= o.exp[i]) < 0)
+                return null;
+        return of(c);
+    }
+
+    /* internal degree, |x_n| = 2(p^n - 1) for x = m, v or t */
+    int degree() {
+        return degree;
+    }
+
+    /* the exponent of x_1 */
+    int v1() {
+        return (exp.length == 0) ? 0 : exp[0];
+    }
+
+    /* every monomial other than 1 of internal degree at most maxDegree, by degree */
+    static SortedMap<Integer,List<Monom>> upToDegree(int maxDegree)
+    {
+        SortedMap<Integer,List<Monom>> ret = new TreeMap<Integer,List<Monom>>();
+        int gens = 0;
+        for(int pi = Q.P; 2 * (pi - 1) <= maxDegree; pi *= Q.P)
+            gens++;
+        enumerate(new int[gens], gens - 1, maxDegree, ret);
+        return ret;
+    }
+
+    /* every monomial of degree <= room in x_1, ..., x_{i+1}, with exp[i+1 ...] as given */
+    private static void enumerate(int[] exp, int i, int room, SortedMap<Integer,List<Monom>> out)
+    {
+        if(i < 0) {
+            Monom m = of(exp.clone());
+            if(m == ONE)
+                return;
+            List<Monom> level = out.get(m.degree());
+            if(level == null)
+                out.put(m.degree(), level = new ArrayList<Monom>());
+            level.add(m);
+            return;
+        }
+
+        int deg = 2 * (Q.pow(Q.P, i+1) - 1);
+        for(int e = 0; e * deg <= room; e++) {
+            exp[i] = e;
+            enumerate(exp, i - 1, room - e * deg, out);
+        }
+        exp[i] = 0;
+    }
+
+    /* the power of p in the denominator of mToV(): sum of n e_n over m_n^e_n */
+    int height() {
+        int h = 0;
+        for(int i = 0; i < exp.length; i++)
+            h += (i+1) * exp[i];
+        return h;
     }
 
     /* removes one degree of the highest entry, and returns the result. if the result is 1, returns identically ONE */
@@ -306,7 +877,7 @@ class Monom implements Comparable<Monom>
         if(exp[exp.length-1] > 1) {
             int[] newexp = Arrays.copyOf(exp, exp.length);
             newexp[exp.length-1]--;
-            return new Monom(newexp);
+            return of(newexp);
         }
 
         /* find the next smallest entry */
@@ -314,20 +885,47 @@ class Monom implements Comparable<Monom>
         for(i = exp.length-2; i >= 0 && exp[i] == 0; i--);
         if(i == -1) return ONE;
         int[] newexp = Arrays.copyOf(exp, i+1);
-        return new Monom(newexp);
+        return of(newexp);
     }
     
+    /* the image of this under a ring homomorphism, from the images of its generator powers:
+     * the image of the monomial without its highest generator, times the image of that
+     * generator's power, which is the square of the image of half the power (times the
+     * generator, if odd). the table then holds the whole powers and the products of the
+     * lower generators, which monomials with the same lower part share, instead of one
+     * entry per factor peeled off. */
+    private <T extends Comparable<T>> RSet<T> multiplicative(Memo<Monom,RSet<T>> cache, Poly.Shape<T> shape)
+    {
+        int n = exp.length;
+        int e = exp[n-1];
+        Monom rest = of(Arrays.copyOf(exp, n-1));
+        if(rest != ONE)
+            return Poly.times(cache.get(rest), cache.get(singleton(n, e)), shape);
+
+        RSet<T> half = cache.get(singleton(n, e/2));
+        RSet<T> ret = Poly.times(half, half, shape);
+        if(e % 2 == 1)
+            ret = Poly.times(ret, cache.get(singleton(n, 1)), shape);
+        return ret;
+    }
+
     /* for monom in T */
-    static Map<Monom,RSet<DiagonalEntry>> diagonalCache = new TreeMap<Monom,RSet<DiagonalEntry>>();
+    static Memo<Monom,RSet<DiagonalEntry>> diagonalCache = new Memo<Monom,RSet<DiagonalEntry>>("diagonalCache") {
+        @Override RSet<DiagonalEntry> compute(Monom m) { return m.computeDiagonal(); }
+    };
     RSet<DiagonalEntry> diagonal()
     {
         int n = exp.length; 
         if(n == 0)
             return new RSet<DiagonalEntry>(new DiagonalEntry(Monom.ONE, Monom.ONE, Monom.ONE));
 
-        RSet<DiagonalEntry> ret = diagonalCache.get(this);
-        if(ret != null) return ret;
-        ret = new RSet<DiagonalEntry>();
+        return diagonalCache.get(this);
+    }
+
+    private RSet<DiagonalEntry> computeDiagonal()
+    {
+        int n = exp.length;
+        RSet<DiagonalEntry> ret = new RSet<DiagonalEntry>();
 
         Monom/*T*/ next = reduce();
 
@@ -345,36 +943,30 @@ class Monom implements Comparable<Monom>
                 }
             }
 
-            diagonalCache.put(this,ret);
             return ret;
         }
 
-        /* otherwise, peel a singleton off, compute on the factors */
-        Monom/*T*/ single = singleton(exp.length,1);
-
-        RSet<DiagonalEntry> nextret = next.diagonal();
-        RSet<DiagonalEntry> singleret = single.diagonal();
-
-        /* and multiply */
-        for(Entry<DiagonalEntry,Q> e1 : nextret.entrySet())
-            for(Entry<DiagonalEntry,Q> e2 : singleret.entrySet())
-                ret.add(e1.getKey().times(e2.getKey()), e1.getValue().times(e2.getValue()));
-
-        diagonalCache.put(this,ret);
-        return ret;
+        /* otherwise, multiply the images of the generator powers */
+        return multiplicative(diagonalCache, Poly.DIAGONAL);
     }
     
     /* for monom in M */
-    static Map<Monom,RSet<MonomInMT>> rightUnitCache = new TreeMap<Monom,RSet<MonomInMT>>();
+    static Memo<Monom,RSet<MonomInMT>> rightUnitCache = new Memo<Monom,RSet<MonomInMT>>("rightUnitCache") {
+        @Override RSet<MonomInMT> compute(Monom m) { return m.computeRightUnit(); }
+    };
     RSet<MonomInMT> rightUnit()
     {
         int n = exp.length; 
         if(n == 0)
             return new RSet<MonomInMT>(new MonomInMT(Monom.ONE, Monom.ONE));
 
-        RSet<MonomInMT> ret = rightUnitCache.get(this);
-        if(ret != null) return ret;
-        ret = new RSet<MonomInMT>();
+        return rightUnitCache.get(this);
+    }
+
+    private RSet<MonomInMT> computeRightUnit()
+    {
+        int n = exp.length;
+        RSet<MonomInMT> ret = new RSet<MonomInMT>();
 
         Monom/*M*/ next = reduce();
 
@@ -382,38 +974,47 @@ class Monom implements Comparable<Monom>
             for(int i = 0; i <= n; i++)
                 ret.add(new MonomInMT(singleton(i,1), singleton(n-i, Q.pow(Q.P, i))), Q.ONE);
 
-            rightUnitCache.put(this, ret);
             return ret;
         }
 
-        /* otherwise, peel a singleton off, compute on the factors */
-        Monom/*M*/ single = singleton(exp.length,1);
-
-        RSet<MonomInMT> nextret = next.rightUnit();
-        RSet<MonomInMT> singleret = single.rightUnit();
-
-        /* and multiply */
-        for(Entry<MonomInMT,Q> e1 : nextret.entrySet())
-            for(Entry<MonomInMT,Q> e2 : singleret.entrySet())
-                ret.add(e1.getKey().times(e2.getKey()), e1.getValue().times(e2.getValue()));
-
-        rightUnitCache.put(this, ret);
-        return ret;
+        /* otherwise, multiply the images of the generator powers */
+        return multiplicative(rightUnitCache, Poly.MONOMINMT);
     }
 
-    static Map<Monom,RSet<Monom>> mToVCache = new TreeMap<Monom,RSet<Monom>>();
+    static Memo<Monom,RSet<Monom>> mToVCache = new Memo<Monom,RSet<Monom>>("mToVCache") {
+        @Override RSet<Monom> compute(Monom m) { return m.computeMToV(); }
+    };
+    /* in modular mode there are no denominators, so the table holds p^height() times m's image
+     * in v instead; BPCobar.mToV() makes up the difference. */
     RSet<Monom/*V*/> mToV()
     {
         int n = exp.length; 
         if(n == 0)
             return new RSet<Monom/*V*/>(Monom.ONE);
         
-        RSet<Monom/*V*/> ret = mToVCache.get(this);
-        if(ret != null) return ret;
-        ret = new RSet<Monom/*V*/>();
+        return mToVCache.get(this);
+    }
+
+    private RSet<Monom/*V*/> computeMToV()
+    {
+        int n = exp.length;
+        RSet<Monom/*V*/> ret = new RSet<Monom/*V*/>();
 
         Monom/*M*/ next = reduce();
 
+        if(next == ONE && Q.MOD != 0) { /* p^n times the singleton formula, which is integral */
+            ret.add(singleton(n,1), Q.ppow(n-1));
+            for(int i = 1; i < n; i++) {
+                RSet<Monom/*V*/> sub = singleton(i,1).mToV();
+                Monom/*V*/ subsing = singleton(n-i, Q.pow(Q.P, i));
+                Q scale = Q.ppow(n-1-i);
+                for(Entry<Monom/*V*/,Q> sube : sub.entrySet())
+                    ret.add(sube.getKey().times(subsing), sube.getValue().times(scale));
+            }
+
+            return ret;
+        }
+
         if(next == ONE) { /* we're already a singleton; apply the singleton formula */
             ret.add(singleton(n,1), Q.ONEOVERP);
             for(int i = 1; i < n; i++) {
@@ -423,35 +1024,29 @@ class Monom implements Comparable<Monom>
                     ret.add(sube.getKey().times(subsing), sube.getValue().times(Q.ONEOVERP));
             }
 
-            mToVCache.put(this,ret);
             return ret;
         }
 
-        /* otherwise, peel a singleton off, compute on the factors */
-        Monom/*M*/ single = singleton(exp.length,1);
-
-        RSet<Monom/*V*/> nextret = next.mToV();
-        RSet<Monom/*V*/> singleret = single.mToV();
-
-        /* and multiply */
-        for(Entry<Monom/*V*/,Q> e1 : nextret.entrySet())
-            for(Entry<Monom/*V*/,Q> e2 : singleret.entrySet())
-                ret.add(e1.getKey().times(e2.getKey()), e1.getValue().times(e2.getValue()));
-
-        mToVCache.put(this,ret);
-        return ret;
+        /* otherwise, multiply the images of the generator powers */
+        return multiplicative(mToVCache, Poly.MONOM);
     }
 
-    static Map<Monom,RSet<Monom>> vToMCache = new TreeMap<Monom,RSet<Monom>>();
+    static Memo<Monom,RSet<Monom>> vToMCache = new Memo<Monom,RSet<Monom>>("vToMCache") {
+        @Override RSet<Monom> compute(Monom m) { return m.computeVToM(); }
+    };
     RSet<Monom/*M*/> vToM()
     {
         int n = exp.length; 
         if(n == 0)
             return new RSet<Monom/*M*/>(Monom.ONE);
         
-        RSet<Monom/*M*/> ret = vToMCache.get(this);
-        if(ret != null) return ret;
-        ret = new RSet<Monom/*M*/>();
+        return vToMCache.get(this);
+    }
+
+    private RSet<Monom/*M*/> computeVToM()
+    {
+        int n = exp.length;
+        RSet<Monom/*M*/> ret = new RSet<Monom/*M*/>();
 
         Monom/*V*/ next = reduce();
 
@@ -463,37 +1058,24 @@ class Monom implements Comparable<Monom>
                 for(Entry<Monom/*M*/,Q> sube : sub.entrySet())
                     ret.add(sube.getKey().times(subsing), sube.getValue().times(Q.MINUSONE));
             }
-            vToMCache.put(this,ret);
             return ret;
         }
 
-        /* otherwise, peel a singleton off, compute on the factors */
-        Monom/*V*/ single = singleton(exp.length,1);
-
-        RSet<Monom/*M*/> nextret = next.vToM();
-        RSet<Monom/*M*/> singleret = single.vToM();
-
-        /* and multiply */
-        for(Entry<Monom/*M*/,Q> e1 : nextret.entrySet())
-            for(Entry<Monom/*M*/,Q> e2 : singleret.entrySet())
-                ret.add(e1.getKey().times(e2.getKey()), e1.getValue().times(e2.getValue()));
-
-        vToMCache.put(this,ret);
-        return ret;
+        /* otherwise, multiply the images of the generator powers */
+        return multiplicative(vToMCache, Poly.MONOM);
     }
     
-    public String toString(char c)
+    public String toString(final char c)
     {
-        if(exp.length == 0) return "1";
+        return Printer.toString(new Printer.Printable() {
+            @Override public void print(Printer p) throws IOException {
+                p.print(Monom.this, c);
+            }
+        });
+    }
 
-        String ret = "";
-        for(int i = 0; i < exp.length; i++) {
-            if(exp[i] == 0) continue;
-            ret += c;
-            ret += (i+1);
-            if(exp[i] > 1) ret += "^" + exp[i];
-        }
-        return ret;
+    @Override public void print(Printer p) throws IOException {
+        p.print(this, 'x');
     }
 
     @Override public String toString() {
@@ -506,9 +1088,15 @@ class Monom implements Comparable<Monom>
 
     @Override public int compareTo(Monom o)
     {
+        if(this == o) return 0;
         int c;
         c = exp.length - o.exp.length;
         if(c != 0) return c;
+        if(packed && o.packed) {
+            if(lo != o.lo) return ((lo ^ Long.MIN_VALUE) < (o.lo ^ Long.MIN_VALUE)) ? -1 : 1;
+            if(hi != o.hi) return ((hi ^ Long.MIN_VALUE) < (o.hi ^ Long.MIN_VALUE)) ? -1 : 1;
+            return 0;
+        }
         for(int i = 0; i < exp.length; i++) {
             c = exp[i] - o.exp[i];
             if(c != 0) return c;
@@ -516,6 +1104,20 @@ class Monom implements Comparable<Monom>
         return 0;
     }
 
+    @Override public boolean equals(Object other)
+    {
+        if(this == other) return true;
+        if(! (other instanceof Monom)) return false;
+        Monom o = (Monom) other;
+        if(hash != o.hash || packed != o.packed) return false;
+        if(packed) return (lo == o.lo && hi == o.hi && exp.length == o.exp.length);
+        return Arrays.equals(exp, o.exp);
+    }
+
+    @Override public int hashCode() {
+        return hash;
+    }
+
     static Monom parse(String s, String c)
     {
         s = s.trim();
@@ -546,7 +1148,7 @@ class Monom implements Comparable<Monom>
     }
 }
 
-class MonomInMT implements Comparable<MonomInMT>
+class MonomInMT implements Comparable<MonomInMT>, Printer.Printable
 {
     Monom/*M*/ m;
     Monom/*T*/ t;
@@ -562,13 +1164,27 @@ class MonomInMT implements Comparable<MonomInMT>
         if(c != 0) return c;
         return t.compareTo(o.t);
     }
+    @Override public boolean equals(Object other) {
+        if(! (other instanceof MonomInMT)) return false;
+        MonomInMT o = (MonomInMT) other;
+        return (m == o.m && t == o.t);
+    }
+    @Override public int hashCode() {
+        return 31 * m.hashCode() + t.hashCode();
+    }
+
+    @Override public void print(Printer p) throws IOException {
+        p.print(m, 'm');
+        p.out.append(p.st == Printer.Style.MACHINE ? '\t' : ' ');
+        p.print(t, 't');
+    }
 
     @Override public String toString() {
-        return m.toString('m') + " " + t.toString('t');
+        return Printer.toString(this);
     }
 }
 
-class DiagonalEntry implements Comparable<DiagonalEntry>
+class DiagonalEntry implements Comparable<DiagonalEntry>, Printer.Printable
 {
     Monom/*M*/ coeff;
     Monom/*T*/ a;
@@ -589,73 +1205,335 @@ class DiagonalEntry implements Comparable<DiagonalEntry>
         if(c != 0) return c;
         return b.compareTo(o.b);
     }
+    @Override public boolean equals(Object other)
+    {
+        if(! (other instanceof DiagonalEntry)) return false;
+        DiagonalEntry o = (DiagonalEntry) other;
+        return (coeff == o.coeff && a == o.a && b == o.b);
+    }
+    @Override public int hashCode()
+    {
+        return (31 * coeff.hashCode() + a.hashCode()) * 31 + b.hashCode();
+    }
+    @Override public void print(Printer p) throws IOException
+    {
+        boolean machine = (p.st == Printer.Style.MACHINE);
+        p.print(coeff, 'm');
+        p.out.append(machine ? "\t" : " ");
+        p.print(a, 't');
+        p.out.append(machine ? "\t" : " \u2297 ");
+        p.print(b, 't');
+    }
+
     @Override public String toString()
     {
-        return coeff.toString('m') + " " + a.toString('t') + " \u2297 " + b.toString('t');
+        return Printer.toString(this);
     }
 
+    /* in^(p^i) */
     static RSet<DiagonalEntry> pow(RSet<DiagonalEntry> in, int p, int i)
     {
         if(i == 0)
             return in;
 
-        if(p != 2) {
-            System.err.println("DiagonalEntry.pow() not supported for p != 2");
-            System.exit(1);
+        RSet<DiagonalEntry> prev = pow(in, p, i-1);
+        if(p == 2)
+            return times(prev, prev);
+
+        /* past 20!, the multinomial coefficients needn't fit in a long */
+        if(p > 20) {
+            RSet<DiagonalEntry> ret = prev;
+            for(int j = 1; j < p; j++)
+                ret = times(ret, prev);
+            return ret;
         }
 
-        RSet<DiagonalEntry> prev = pow(in, p, i-1);
-        return times(prev, prev);
+        List<Entry<DiagonalEntry,Q>> terms = new ArrayList<Entry<DiagonalEntry,Q>>(prev.entrySet());
+        RSet<DiagonalEntry> ret = new RSet<DiagonalEntry>();
+        multinomial(terms, p, 0, 0, 0, null, Q.ONE, 1, ret);
+        return ret;
+    }
+
+    /* the p-th power of a sum, term by term: every multiset of p terms, as the indices
+     * k_1 <= ... <= k_p, times its multinomial coefficient. depth is how many have been chosen,
+     * the last of them being terms[from], run times in a row; mult is depth! / prod(multiplicity!)
+     * for the choices so far, and a next choice that makes a run of r multiplies it by
+     * (depth+1) / r, which stays an integer. */
+    private static void multinomial(List<Entry<DiagonalEntry,Q>> terms, int p, int depth, int from, int run,
+        DiagonalEntry prod, Q coeff, long mult, RSet<DiagonalEntry> ret)
+    {
+        if(depth == p) {
+            ret.add(prod, coeff.times(new Q(mult)));
+            return;
+        }
+
+        for(int k = from; k < terms.size(); k++) {
+            Entry<DiagonalEntry,Q> e = terms.get(k);
+            int r = (depth > 0 && k == from) ? run + 1 : 1;
+            DiagonalEntry next = (prod == null) ? e.getKey() : prod.times(e.getKey());
+            multinomial(terms, p, depth + 1, k, r, next, coeff.times(e.getValue()), mult * (depth + 1) / r, ret);
+        }
     }
 
     static RSet<DiagonalEntry> times(RSet<DiagonalEntry> a, RSet<DiagonalEntry> b)
     {
-        RSet<DiagonalEntry> ret = new RSet<DiagonalEntry>();
-        for(Entry<DiagonalEntry,Q> ea : a.entrySet())
-            for(Entry<DiagonalEntry,Q> eb : b.entrySet())
-                ret.add( ea.getKey().times(eb.getKey()), ea.getValue().times(eb.getValue()) );
-        return ret;
+        return Poly.times(a, b, Poly.DIAGONAL);
+    }
+}
+
+/* the coefficient ring of the run: the prime, and whether coefficients are rationals or
+ * residues mod a power of it. this is a global switch, not a parameter of the computation:
+ * main sets it before anything is computed, and Q copies it into constants when it is first
+ * used, after which it can't change. */
+class Ring
+{
+    static int p = 2;
+    static long mod = 0;
+    static int k = 0, guard = 0;
+
+    private static boolean fixed = false;
+
+    static void setPrime(int p)
+    {
+        check();
+        if(p < 2 || ! BigInteger.valueOf(p).isProbablePrime(30))
+            throw new IllegalArgumentException(p+" is not a prime");
+        Ring.p = p;
+    }
+
+    /* switches to residues mod p^k, where modulus = p^k, keeping guard extra digits -- or as
+     * many as fit if guard < 0 */
+    static void setModulus(long modulus, int guard)
+    {
+        check();
+        int k = 0;
+        for(long m = modulus; m > 1; m /= p) {
+            if(m % p != 0) throw new IllegalArgumentException(modulus+" is not a power of "+p);
+            k++;
+        }
+        if(k == 0) throw new IllegalArgumentException("the modulus must be at least "+p);
+
+        /* products of residues must fit in a long: for p = 2 they wrap mod 2^64, which is
+         * harmless; for odd p the modulus has to stay below 2^31 */
+        int room = 0;
+        long limit = (p == 2) ? (1L << 62) : (1L << 31);
+        for(long m = 1; m <= limit / p; m *= p) room++;
+        if(guard < 0) guard = Math.max(0, room - k);
+        if(k + guard > room)
+            throw new IllegalArgumentException("p^"+(k+guard)+" is too large; at most p^"+room+" fits");
+
+        Ring.k = k;
+        Ring.guard = guard;
+        mod = 1;
+        for(int i = 0; i < k + guard; i++) mod *= p;
+    }
+
+    private static void check()
+    {
+        if(fixed) throw new IllegalStateException("coefficients are already in use");
+    }
+
+    /* called as Q is initialized */
+    static void fix()
+    {
+        fixed = true;
     }
 }
 
 class Q
 {
+    /* copied from Ring. when MOD is 0, a Q is an exact rational. otherwise it is a residue mod
+     * MOD, held in n with d == 1, and MOD = p^(K+GUARD): results are wanted mod p^K, and the m
+     * basis needs GUARD extra digits because it has denominators (see Monom.mToV). */
+    final static int P;
+    final static long MOD;
+    final static int K, GUARD;
+    static {
+        Ring.fix();
+        P = Ring.p;
+        MOD = Ring.mod;
+        K = Ring.k;
+        GUARD = Ring.guard;
+    }
+
     final static Q ONE = new Q(1L);
     final static Q MINUSONE = new Q(-1L);
-    final static int P = 2; /* XXX CONFIG */
     final static Q PASQ = new Q(P);
-    final static Q ONEOVERP = new Q(1,P);
+    final static Q ONEOVERP = (MOD == 0) ? new Q(1,P) : null; /* p isn't invertible mod MOD */
 
-    private final static long BIG = (1L << 32);
+    /* values with |n| and d below BIG are kept in the longs n, d; products and
+     * cross-sums of two such values can't overflow a long. anything larger is
+     * promoted to bn, bd. in either form, a Q is in lowest terms with d > 0. */
+    private final static long BIG = (1L << 31);
+    private final static BigInteger BIGBIG = BigInteger.valueOf(BIG);
 
-    BigInteger n, d;
+    final long n, d;
+    final BigInteger bn, bd; /* null unless promoted */
 
     Q(long n) {
         this(n,1L);
     }
     Q(long n, long d) {
-        this.n = BigInteger.valueOf(n);
-        this.d = BigInteger.valueOf(d);
+        if(d == 0) throw new ArithmeticException("zero denominator");
+        if(MOD != 0) {
+            this.n = mulmod(mod(n), inverse(mod(d)));
+            this.d = 1;
+            this.bn = null;
+            this.bd = null;
+            return;
+        }
+        if(d < 0) {
+            n = -n;
+            d = -d;
+        }
+        long g = gcd(n, d);
+        if(g != 1) {
+            n /= g;
+            d /= g;
+        }
+        if(n > -BIG && n < BIG && d < BIG) {
+            this.n = n;
+            this.d = d;
+            this.bn = null;
+            this.bd = null;
+        } else {
+            this.n = 0;
+            this.d = 1;
+            this.bn = BigInteger.valueOf(n);
+            this.bd = BigInteger.valueOf(d);
+        }
     }
     Q(BigInteger n, BigInteger d) {
+        if(d.signum() == 0) throw new ArithmeticException("zero denominator");
+        if(MOD != 0) {
+            BigInteger m = BigInteger.valueOf(MOD);
+            this.n = mulmod(n.mod(m).longValue(), inverse(d.mod(m).longValue()));
+            this.d = 1;
+            this.bn = null;
+            this.bd = null;
+            return;
+        }
+        if(d.signum() < 0) {
+            n = n.negate();
+            d = d.negate();
+        }
+        BigInteger g = n.gcd(d);
+        if(! g.equals(BigInteger.ONE)) {
+            n = n.divide(g);
+            d = d.divide(g);
+        }
+        if(n.abs().compareTo(BIGBIG) < 0 && d.compareTo(BIGBIG) < 0) {
+            this.n = n.longValue();
+            this.d = d.longValue();
+            this.bn = null;
+            this.bd = null;
+        } else {
+            this.n = 0;
+            this.d = 1;
+            this.bn = n;
+            this.bd = d;
+        }
+    }
+
+    /* fields as given, already normalized */
+    private Q(long n, long d, BigInteger bn, BigInteger bd) {
         this.n = n;
         this.d = d;
+        this.bn = bn;
+        this.bd = bd;
+    }
+
+    /* in modular mode, r as a residue; r must already be reduced mod MOD */
+    static Q residue(long r) {
+        return new Q(r, 1, null, null);
+    }
+
+    static long mod(long a) {
+        a %= MOD;
+        return (a < 0) ? a + MOD : a;
+    }
+
+    static long mulmod(long a, long b) {
+        if(P == 2) return (a * b) & (MOD - 1);
+        return (a * b) % MOD;
+    }
+
+    /* the inverse of a mod MOD, which must be prime to p */
+    static long inverse(long a) {
+        if(a == 1) return 1;
+        long r0 = MOD, r1 = a, s0 = 0, s1 = 1;
+        while(r1 != 0) {
+            long q = r0 / r1, t;
+            t = r0 - q * r1; r0 = r1; r1 = t;
+            t = s0 - q * s1; s0 = s1; s1 = t;
+        }
+        if(r0 != 1) throw new ArithmeticException("not invertible mod "+MOD);
+        return mod(s0);
     }
 
-    Q reduce() {
-        BigInteger gcd = n.gcd(d);
-        if(gcd.equals(BigInteger.ONE)) return this;
-        return new Q(n.divide(gcd), d.divide(gcd));
+    /* p^e, as a coefficient */
+    static Q ppow(int e) {
+        if(MOD == 0) return new Q(BigInteger.valueOf(P).pow(e), BigInteger.ONE);
+        long r = 1;
+        for(int i = 0; i < e; i++) r = mulmod(r, P);
+        return residue(r);
+    }
+
+    /* in modular mode: this is p^GUARD times a residue mod p^K; returns that residue */
+    Q descale() {
+        long r = n;
+        for(int i = 0; i < GUARD; i++) {
+            if(r % P != 0) throw new ArithmeticException("coefficient "+n+" is not divisible by p^"+GUARD);
+            r /= P;
+        }
+        long out = 1;
+        for(int i = 0; i < K; i++) out *= P;
+        return residue(r % out);
+    }
+
+    static long gcd(long a, long b) {
+        if(a < 0) a = -a;
+        while(b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return (a == 0) ? 1 : a;
+    }
+
+    BigInteger bigN() {
+        return (bn != null) ? bn : BigInteger.valueOf(n);
+    }
+    BigInteger bigD() {
+        return (bd != null) ? bd : BigInteger.valueOf(d);
     }
 
     Q plus(Q o) {
-        return new Q(d.multiply(o.n).add(o.d.multiply(n)), d.multiply(o.d));
+        if(isZero()) return o;
+        if(o.isZero()) return this;
+        if(MOD != 0) {
+            long r = n + o.n;
+            return residue((r >= MOD) ? r - MOD : r);
+        }
+        if(bn == null && o.bn == null) {
+            if(d == o.d)
+                return new Q(n + o.n, d);
+            return new Q(n * o.d + o.n * d, d * o.d);
+        }
+        return new Q(bigD().multiply(o.bigN()).add(o.bigD().multiply(bigN())), bigD().multiply(o.bigD()));
     }
 
     Q times(Q o) {
         if(o == ONE) return this;
         if(this == ONE) return o;
-        return new Q(n.multiply(o.n), d.multiply(o.d));
+        if(MOD != 0) return residue(mulmod(n, o.n));
+        if(bn == null && o.bn == null) {
+            /* cancel across first, so the result needs no further reduction when it stays small */
+            long g1 = gcd(n, o.d);
+            long g2 = gcd(o.n, d);
+            return new Q((n / g1) * (o.n / g2), (d / g2) * (o.d / g1));
+        }
+        return new Q(bigN().multiply(o.bigN()), bigD().multiply(o.bigD()));
     }
 
     static Q sign(int i) {
@@ -665,10 +1543,13 @@ class Q
     }
 
     boolean isZero() {
-        return (n.equals(BigInteger.ZERO));
+        return (bn == null && n == 0);
     }
     boolean isOne() {
-        return (n.equals(d));
+        return (bn == null && n == 1 && d == 1);
+    }
+    boolean isIntegral() {
+        return (bn == null) ? d == 1 : bd.equals(BigInteger.ONE);
     }
 
     static int pow(int a, int b) {
@@ -680,9 +1561,12 @@ class Q
     }
 
     @Override public String toString() {
-        Q red = reduce();
-        if(red.d.equals(BigInteger.ONE)) return red.n.toString();
-        else return n + "/" + d;
+        if(bn == null) {
+            if(d == 1) return Long.toString(n);
+            return n + "/" + d;
+        }
+        if(bd.equals(BigInteger.ONE)) return bn.toString();
+        return bn + "/" + bd;
     }
 
     static Q parse(String s)
@@ -692,59 +1576,647 @@ class Q
 
         try {
         if(idx == -1)
-            return new Q(Integer.parseInt(s));
+            return parse(s, "1");
         else
-            return new Q(Integer.parseInt(s.substring(0,idx)), Integer.parseInt(s.substring(idx+1)));
+            return parse(s.substring(0,idx), s.substring(idx+1));
         } catch(NumberFormatException err) {
             System.err.println("Error parsing rational: "+s);
             return null;
+        } catch(ArithmeticException err) {
+            System.err.println("Error parsing rational: "+s);
+            return null;
         }
 
     }
+
+    /* n/d, in longs when both fit */
+    private static Q parse(String n, String d)
+    {
+        n = n.trim();
+        d = d.trim();
+        try {
+            return new Q(Long.parseLong(n), Long.parseLong(d));
+        } catch(NumberFormatException err) {
+            return new Q(new BigInteger(n), new BigInteger(d));
+        }
+    }
 }
 
-class RSet<T> extends TreeMap<T,Q>
+/* a linear combination of T's with rational coefficients. terms live in an open-addressing
+ * table with their hashes stored alongside, and a coefficient that cancels to zero leaves its
+ * key behind so the term can come back without re-inserting. iteration order is arbitrary;
+ * toString() sorts. */
+class RSet<T extends Comparable<T>> extends AbstractMap<T,Q>
 {
-    RSet() { }
-    RSet(T t) { add(t,Q.ONE); }
+    private Object[] keys;
+    private Q[] vals; /* null: empty slot, or a cancelled term if keys[i] is set */
+    private int[] hashes;
+    private int size; /* live terms */
+    private int used; /* slots with a key */
+
+    RSet() {
+        this(8);
+    }
+    RSet(T t) {
+        this(2);
+        add(t,Q.ONE);
+    }
+    private RSet(int expected) {
+        int cap = 4;
+        while(cap * 3 < expected * 4) cap <<= 1;
+        keys = new Object[cap];
+        vals = new Q[cap];
+        hashes = new int[cap];
+    }
 
-    public void add(T t, Q q)
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /* the slot holding t, or the empty slot where it would go */
+    private int slot(Object t, int h) {
+        int mask = keys.length - 1;
+        int i = h & mask;
+        while(true) {
+            Object k = keys[i];
+            if(k == null || (hashes[i] == h && (k == t || k.equals(t))))
+                return i;
+            i = (i+1) & mask;
+        }
+    }
+
+    private void grow() {
+        Object[] oldkeys = keys;
+        Q[] oldvals = vals;
+        int[] oldhashes = hashes;
+
+        int cap = keys.length;
+        if(size * 2 >= cap) cap <<= 1; /* otherwise just sweep out the cancelled terms */
+        keys = new Object[cap];
+        vals = new Q[cap];
+        hashes = new int[cap];
+        used = size;
+
+        int mask = cap - 1;
+        for(int j = 0; j < oldkeys.length; j++) {
+            if(oldvals[j] == null) continue;
+            int i = oldhashes[j] & mask;
+            while(keys[i] != null) i = (i+1) & mask;
+            keys[i] = oldkeys[j];
+            vals[i] = oldvals[j];
+            hashes[i] = oldhashes[j];
+        }
+    }
+
+    /* a zero q, which in modular mode a product of two residues can be, adds nothing */
+    private void add(Object t, int h, Q q)
     {
         if(q.isZero()) return;
+        int i = slot(t, h);
+        if(keys[i] == null) {
+            if((used+1) * 4 > keys.length * 3) {
+                grow();
+                i = slot(t, h);
+            }
+            keys[i] = t;
+            hashes[i] = h;
+            vals[i] = q;
+            used++;
+            size++;
+            return;
+        }
 
-        Q oldq = get(t);
+        Q oldq = vals[i];
         if(oldq == null) {
-            put(t,q);
+            vals[i] = q;
+            size++;
             return;
         }
 
         Q newq = oldq.plus(q);
-        if(newq.isZero())
-            remove(t);
-        else
-            put(t,newq);
+        if(newq.isZero()) {
+            vals[i] = null;
+            size--;
+        } else vals[i] = newq;
+    }
+
+    public void add(T t, Q q)
+    {
+        add(t, spread(t.hashCode()), q);
     }
 
     public void add(RSet<T> r, Q q)
     {
-        for(Entry<T,Q> e : r.entrySet())
-            add(e.getKey(), e.getValue().times(q));
+        if(q.isZero()) return;
+        for(int j = 0; j < r.keys.length; j++) {
+            Q v = r.vals[j];
+            if(v == null) continue;
+            add(r.keys[j], r.hashes[j], v.times(q));
+        }
+    }
+
+    @Override public Q get(Object t)
+    {
+        if(t == null) return null;
+        return vals[slot(t, spread(t.hashCode()))];
+    }
+
+    @Override public boolean containsKey(Object t)
+    {
+        return get(t) != null;
+    }
+
+    @Override public int size()
+    {
+        return size;
+    }
+
+    @Override public Set<Entry<T,Q>> entrySet()
+    {
+        return new AbstractSet<Entry<T,Q>>() {
+            @Override public int size() {
+                return size;
+            }
+            @Override public Iterator<Entry<T,Q>> iterator() {
+                return new Iterator<Entry<T,Q>>() {
+                    int i = advance(0);
+                    int advance(int j) {
+                        while(j < vals.length && vals[j] == null) j++;
+                        return j;
+                    }
+                    @Override public boolean hasNext() {
+                        return i < vals.length;
+                    }
+                    @SuppressWarnings("unchecked")
+                    @Override public Entry<T,Q> next() {
+                        if(i >= vals.length) throw new NoSuchElementException();
+                        Entry<T,Q> e = new SimpleImmutableEntry<T,Q>((T) keys[i], vals[i]);
+                        i = advance(i+1);
+                        return e;
+                    }
+                };
+            }
+        };
+    }
+
+    /* the live terms, in the order of T */
+    @SuppressWarnings("unchecked")
+    List<Entry<T,Q>> sortedEntries()
+    {
+        List<Entry<T,Q>> ret = new ArrayList<Entry<T,Q>>(size);
+        for(int i = 0; i < keys.length; i++)
+            if(vals[i] != null)
+                ret.add(new SimpleImmutableEntry<T,Q>((T) keys[i], vals[i]));
+        Collections.sort(ret, new Comparator<Entry<T,Q>>() {
+            @Override public int compare(Entry<T,Q> a, Entry<T,Q> b) {
+                return a.getKey().compareTo(b.getKey());
+            }
+        });
+        return ret;
     }
 
     @Override public String toString()
     {
-        String ret = "";
+        if(size() == 0)
+            return "0"; /* as Printer.println has it */
+        StringBuilder sb = new StringBuilder();
+        try {
+            new Printer(sb, Printer.Style.PRETTY).print(this);
+        } catch(IOException err) {
+            throw new IllegalStateException(err); /* StringBuilder doesn't throw */
+        }
+        return sb.toString();
+    }
+}
+
+/* a table of computed values that is safe to share between threads. each key is computed
+ * exactly once; a thread asking for a key that another thread is still computing waits for
+ * that result instead of starting its own. */
+abstract class Memo<K,V>
+{
+    /* what to throw out first once the budget is exceeded: the least recently used entries,
+     * or (GreedyDual) the ones that took the least time to compute per term of result,
+     * aged so that entries nobody asks for eventually go too */
+    enum Policy { LRU, COST }
+
+    /* the budget is shared by all memos, and counted in bytes by estimating BYTES_PER_UNIT for
+     * each unit of weight -- for an RSet, each term. 0 means unbounded. */
+    static volatile long budget = 0;
+    static volatile Policy policy = Policy.LRU;
+    final static int BYTES_PER_UNIT = 96;
+
+    private final static List<Memo<?,?>> all = new CopyOnWriteArrayList<Memo<?,?>>();
+    private final static AtomicLong totalWeight = new AtomicLong();
+    private final static AtomicLong clock = new AtomicLong();
+    private static volatile double inflation = 0; /* GreedyDual's L, written under Memo.class */
+
+    final String name;
+    final LongAdder hits = new LongAdder(); /* counted on every lookup, so kept uncontended */
+    final LongAdder misses = new LongAdder();
+    final LongAdder loads = new LongAdder();
+    final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong weight = new AtomicLong();
+
+    private final ConcurrentMap<K,Slot> table = new ConcurrentHashMap<K,Slot>();
+
+    /* consulted before computing a missing key; null if there is none */
+    volatile Store<K,V> store = null;
+
+    Memo(String name)
+    {
+        this.name = name;
+        all.add(this);
+    }
+
+    abstract V compute(K key);
+
+    /* the size of v, in units of about BYTES_PER_UNIT */
+    long weigh(V v)
+    {
+        if(v instanceof Map) return Math.max(1, ((Map<?,?>) v).size());
+        return 1;
+    }
+
+    private class Slot extends FutureTask<V>
+    {
+        volatile long weight = 0;
+        volatile long cost = 0; /* nanoseconds to compute */
+        volatile double priority = 0;
+
+        Slot(Callable<V> c) {
+            super(c);
+        }
+
+        /* only eviction looks at the priority, so without a budget there's nothing to do */
+        void touch() {
+            if(budget == 0)
+                return;
+            if(policy == Policy.LRU)
+                priority = clock.incrementAndGet();
+            else priority = inflation + (double) cost / Math.max(1, weight);
+        }
+    }
 
-        boolean first = true;
-        for(Entry<T,Q> e : entrySet()) {
-            if(!first) ret += "\n + ";
-            first = false;
+    V get(final K key)
+    {
+        Slot f = table.get(key);
+        if(f != null) {
+            hits.increment();
+            f.touch();
+        } else {
+            Slot nf = new Slot(new Callable<V>() {
+                @Override public V call() {
+                    Store<K,V> st = store;
+                    V ret = (st == null) ? null : st.load(key);
+                    if(ret != null) loads.increment();
+                    else {
+                        misses.increment();
+                        ret = compute(key);
+                    }
+                    return ret;
+                }
+            });
+            f = table.putIfAbsent(key, nf);
+            if(f == null) {
+                f = nf;
+                long start = System.nanoTime();
+                nf.run();
+                nf.cost = System.nanoTime() - start;
+                settle(key, nf);
+            } else {
+                hits.increment();
+                f.touch();
+            }
+        }
+
+        try {
+            return f.get();
+        } catch(ExecutionException err) {
+            table.remove(key, f);
+            Throwable cause = err.getCause();
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if(cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        } catch(InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(err);
+        }
+    }
 
-            if(! e.getValue().isOne())
-                ret += e.getValue().toString() + " ";
-            ret += e.getKey().toString();
+    /* accounts for a freshly computed entry, and evicts if that takes us over budget */
+    private void settle(K key, Slot f)
+    {
+        try {
+            f.weight = weigh(f.get());
+        } catch(ExecutionException err) {
+            return; /* get() reports it */
+        } catch(InterruptedException err) {
+            Thread.currentThread().interrupt();
+            return;
         }
 
+        f.touch();
+        if(table.get(key) != f) return;
+        weight.addAndGet(f.weight);
+        long total = totalWeight.addAndGet(f.weight);
+        if(budget > 0 && total * BYTES_PER_UNIT > budget)
+            evict();
+    }
+
+    int size()
+    {
+        return table.size();
+    }
+
+    /* the entries computed so far */
+    Map<K,V> snapshot()
+    {
+        Map<K,V> ret = new HashMap<K,V>();
+        for(Entry<K,Slot> e : table.entrySet()) {
+            Slot f = e.getValue();
+            if(! f.isDone()) continue;
+            try {
+                ret.put(e.getKey(), f.get());
+            } catch(ExecutionException err) {
+            } catch(InterruptedException err) {
+                Thread.currentThread().interrupt();
+            }
+        }
         return ret;
     }
+
+    /* drops every entry */
+    void clear()
+    {
+        for(Entry<K,Slot> e : table.entrySet())
+            if(table.remove(e.getKey(), e.getValue())) {
+                weight.addAndGet(-e.getValue().weight);
+                totalWeight.addAndGet(-e.getValue().weight);
+            }
+    }
+
+    static List<Memo<?,?>> all()
+    {
+        return all;
+    }
+
+    /* empties every memo, e.g. to time a computation from a cold start */
+    static void clearAll()
+    {
+        for(Memo<?,?> m : all)
+            m.clear();
+    }
+
+    private static class Victim implements Comparable<Victim>
+    {
+        final Memo<?,?> memo;
+        final Object key;
+        final Memo<?,?>.Slot slot;
+        final double priority;
+
+        Victim(Memo<?,?> memo, Object key, Memo<?,?>.Slot slot) {
+            this.memo = memo;
+            this.key = key;
+            this.slot = slot;
+            this.priority = slot.priority;
+        }
+
+        @Override public int compareTo(Victim o) {
+            return Double.compare(priority, o.priority);
+        }
+    }
+
+    /* throws out the lowest-priority finished entries, across all memos, until we're back
+     * to 90% of the budget */
+    private static synchronized void evict()
+    {
+        long target = (long) (0.9 * budget / BYTES_PER_UNIT);
+        if(totalWeight.get() <= target) return;
+
+        List<Victim> victims = new ArrayList<Victim>();
+        for(Memo<?,?> m : all)
+            m.collect(victims);
+        Collections.sort(victims);
+
+        for(Victim v : victims) {
+            if(totalWeight.get() <= target) break;
+            if(v.memo.table.remove(v.key, v.slot)) {
+                v.memo.weight.addAndGet(-v.slot.weight);
+                totalWeight.addAndGet(-v.slot.weight);
+                v.memo.evictions.incrementAndGet();
+                if(policy == Policy.COST)
+                    inflation = Math.max(inflation, v.priority);
+            }
+        }
+    }
+
+    private void collect(List<Victim> victims)
+    {
+        for(Entry<K,Slot> e : table.entrySet())
+            if(e.getValue().isDone() && e.getValue().weight > 0)
+                victims.add(new Victim(this, e.getKey(), e.getValue()));
+    }
+
+    static void report(PrintStream out)
+    {
+        out.printf("%-16s %9s %10s %10s %10s %8s %9s%n", "cache", "entries", "terms", "hits", "misses", "loads", "evictions");
+        for(Memo<?,?> m : all)
+            out.printf("%-16s %9d %10d %10d %10d %8d %9d%n", m.name, m.size(), m.weight.get(), m.hits.sum(), m.misses.sum(), m.loads.sum(), m.evictions.get());
+        if(budget > 0)
+            out.printf("estimated size %dK of %dK budget (%s)%n", totalWeight.get() * BYTES_PER_UNIT >> 10, budget >> 10, policy.toString().toLowerCase());
+    }
+
+    /* a size such as 512m or 4g, or a percentage of the maximum heap, such as 50% */
+    static long parseBudget(String s)
+    {
+        s = s.trim().toLowerCase();
+        if(s.endsWith("%"))
+            return (long) (Runtime.getRuntime().maxMemory() * Double.parseDouble(s.substring(0, s.length()-1)) / 100);
+
+        long mult = 1;
+        char c = s.charAt(s.length()-1);
+        if(c == 'k') mult = 1L << 10;
+        else if(c == 'm') mult = 1L << 20;
+        else if(c == 'g') mult = 1L << 30;
+        if(mult != 1) s = s.substring(0, s.length()-1);
+        return Long.parseLong(s) * mult;
+    }
+}
+
+/* precomputed values that a Memo can fall back on */
+interface Store<K,V>
+{
+    /* the value for key, or null if it isn't stored */
+    V load(K key);
+
+    Collection<K> keys();
+}
+
+/* a linear map, given on basis elements */
+interface Linear<A extends Comparable<A>, B extends Comparable<B>>
+{
+    RSet<B> apply(A a);
+}
+
+/* one of a family of summands, indexed by 0 .. n-1 */
+interface Summand<T extends Comparable<T>>
+{
+    /* adds the k-th summand to ret */
+    void addTo(int k, RSet<T> ret);
+}
+
+/* one of n independent steps, for Par.forEach */
+interface Step
+{
+    void run(int k);
+}
+
+/* evaluation of sums, either sequentially or split across a fork-join pool. in parallel mode
+ * each task accumulates into its own RSet and the partial sums are added up as tasks join. */
+class Par
+{
+    static ForkJoinPool pool = null; /* null: sequential */
+
+    /* n <= 0 means one thread per core */
+    static void setThreads(int n)
+    {
+        if(n <= 0) n = Runtime.getRuntime().availableProcessors();
+        pool = (n == 1) ? null : new ForkJoinPool(n);
+    }
+
+    static <T extends Comparable<T>> RSet<T> sum(int n, Summand<T> f)
+    {
+        if(pool == null || n < 2) {
+            RSet<T> ret = new RSet<T>();
+            for(int k = 0; k < n; k++)
+                f.addTo(k, ret);
+            return ret;
+        }
+
+        /* a few leaves per thread, so that uneven summands still balance */
+        int grain = Math.max(1, n / (4 * pool.getParallelism()));
+        SumTask<T> task = new SumTask<T>(f, 0, n, grain, Stats.current());
+        if(ForkJoinTask.inForkJoinPool())
+            return task.invoke();
+        return pool.invoke(task);
+    }
+
+    /* runs steps 0 to n-1 of f, in any order */
+    static void forEach(int n, Step f)
+    {
+        if(pool == null || n < 2) {
+            for(int k = 0; k < n; k++)
+                f.run(k);
+            return;
+        }
+
+        int grain = Math.max(1, n / (4 * pool.getParallelism()));
+        EachTask task = new EachTask(f, 0, n, grain, Stats.current());
+        if(ForkJoinTask.inForkJoinPool())
+            task.invoke();
+        else pool.invoke(task);
+    }
+
+    /* the image of in under f */
+    static <A extends Comparable<A>, B extends Comparable<B>> RSet<B> map(RSet<A> in, final Linear<A,B> f)
+    {
+        if(pool == null) {
+            RSet<B> ret = new RSet<B>();
+            for(Entry<A,Q> e : in.entrySet())
+                ret.add(f.apply(e.getKey()), e.getValue());
+            return ret;
+        }
+
+        final List<Entry<A,Q>> terms = new ArrayList<Entry<A,Q>>(in.entrySet());
+        return sum(terms.size(), new Summand<B>() {
+            @Override public void addTo(int k, RSet<B> ret) {
+                Entry<A,Q> e = terms.get(k);
+                ret.add(f.apply(e.getKey()), e.getValue());
+            }
+        });
+    }
+
+    /* the tasks carry the Stats.Run they were started under to whichever thread runs them */
+    static class SumTask<T extends Comparable<T>> extends RecursiveTask<RSet<T>>
+    {
+        final Summand<T> f;
+        final int lo, hi, grain;
+        final Stats.Run run;
+
+        SumTask(Summand<T> f, int lo, int hi, int grain, Stats.Run run) {
+            this.f = f;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+            this.run = run;
+        }
+
+        @Override protected RSet<T> compute()
+        {
+            Stats.Run outer = Stats.enter(run);
+            try {
+                return sum();
+            } finally {
+                Stats.enter(outer);
+            }
+        }
+
+        private RSet<T> sum()
+        {
+            if(hi - lo <= grain) {
+                RSet<T> ret = new RSet<T>();
+                for(int k = lo; k < hi; k++)
+                    f.addTo(k, ret);
+                return ret;
+            }
+
+            int mid = (lo + hi) >>> 1;
+            SumTask<T> left = new SumTask<T>(f, lo, mid, grain, run);
+            left.fork();
+            RSet<T> a = new SumTask<T>(f, mid, hi, grain, run).sum();
+            RSet<T> b = left.join();
+
+            /* fold the smaller sum into the larger */
+            if(a.size() < b.size()) {
+                RSet<T> t = a;
+                a = b;
+                b = t;
+            }
+            a.add(b, Q.ONE);
+            return a;
+        }
+    }
+
+    static class EachTask extends RecursiveAction
+    {
+        final Step f;
+        final int lo, hi, grain;
+        final Stats.Run run;
+
+        EachTask(Step f, int lo, int hi, int grain, Stats.Run run) {
+            this.f = f;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+            this.run = run;
+        }
+
+        @Override protected void compute()
+        {
+            Stats.Run outer = Stats.enter(run);
+            try {
+                if(hi - lo <= grain) {
+                    for(int k = lo; k < hi; k++)
+                        f.run(k);
+                    return;
+                }
+
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new EachTask(f, lo, mid, grain, run), new EachTask(f, mid, hi, grain, run));
+            } finally {
+                Stats.enter(outer);
+            }
+        }
+    }
 }
@@ -0,0 +1,70 @@
+package bpcobar;
+
+import java.io.*;
+
+/* non-interactive driver: reads many elements and writes each boundary out as soon as it is
+ * computed, all in one JVM so the structure-formula caches stay warm from one element to the
+ * next.
+ *
+ * input has one element per line. a line ending in '+' continues on the next line, so long
+ * elements can be split into blocks; blank lines and lines starting with '#' are skipped. */
+class Batch
+{
+    static void run(BufferedReader in, PrintWriter out) throws IOException
+    {
+        int items = 0, failed = 0;
+        long total = 0;
+
+        String line;
+        int lineno = 0;
+        while((line = in.readLine()) != null) {
+            lineno++;
+            line = line.trim();
+            if(line.length() == 0 || line.startsWith("#"))
+                continue;
+
+            int first = lineno;
+            StringBuilder elt = new StringBuilder(line);
+            while(line.endsWith("+") && (line = in.readLine()) != null) {
+                lineno++;
+                line = line.trim();
+                elt.append(' ').append(line);
+            }
+
+            items++;
+            out.println("# item "+items+" (line "+first+"): "+elt);
+
+            long start = System.nanoTime();
+            RSet<BPCobar> result;
+            try {
+                RSet<BPCobar> initial = BPCobarMain.parse(elt.toString());
+                if(initial == null) {
+                    out.println("# syntax error");
+                    out.println();
+                    out.flush();
+                    failed++;
+                    continue;
+                }
+                result = BPCobarMain.vToVBoundary(initial);
+            } catch(RuntimeException err) {
+                /* one bad element shouldn't cost the rest of the run */
+                out.println("# failed: "+err);
+                out.println();
+                out.flush();
+                failed++;
+                continue;
+            }
+            long elapsed = System.nanoTime() - start;
+            total += elapsed;
+
+            out.println("# "+String.format("%.1f", elapsed / 1e6)+" ms, "+result.size()+" terms");
+            if(BPCobarMain.printStats)
+                Stats.last().report(out, "# ");
+            new Printer(out).println(result);
+            out.println();
+            out.flush();
+        }
+
+        System.err.println(items+" items ("+failed+" failed) in "+String.format("%.1f", total / 1e9)+" s");
+    }
+}
@@ -0,0 +1,397 @@
+package bpcobar;
+
+import java.math.BigInteger;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.Map.Entry;
+
+/* the structure-formula tables (diagonal, right unit, m to v, v to m) saved to disk, so that
+ * a later run can start warm. the file is memory-mapped on load and only the index is read up
+ * front; a table entry is decoded the first time the corresponding Memo asks for it.
+ *
+ * layout: a header (magic, file version, prime, formula version, coefficient modulus or 0 for
+ * rationals, offset of the index), then
+ * the encoded values, then the index: for each table, a count followed by (key, offset) pairs.
+ * all integers after the header are varints. */
+class CacheFile
+{
+    final static int MAGIC = 0x42504343; /* "BPCC" */
+    final static int FILE_VERSION = 2;
+    final static int FORMULA_VERSION = 1; /* bump whenever the structure formulas change */
+
+    final static int HEADER_SIZE = 32;
+
+    static List<Table<?>> tables()
+    {
+        List<Table<?>> ret = new ArrayList<Table<?>>();
+        ret.add(new Table<DiagonalEntry>(Monom.diagonalCache, DIAGONAL));
+        ret.add(new Table<MonomInMT>(Monom.rightUnitCache, MONOMINMT));
+        ret.add(new Table<Monom>(Monom.mToVCache, MONOM));
+        ret.add(new Table<Monom>(Monom.vToMCache, MONOM));
+        return ret;
+    }
+
+    /* maps f and attaches it to the Monom caches. returns false (and leaves the caches alone)
+     * if f is unreadable or was written for another prime, modulus or formula version. */
+    static boolean load(File f)
+    {
+        ByteBuffer buf;
+        try {
+            FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            try {
+                buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            } finally {
+                ch.close();
+            }
+        } catch(IOException err) {
+            System.err.println("Couldn't read cache file "+f+": "+err.getMessage());
+            return false;
+        }
+
+        try {
+            if(buf.getInt() != MAGIC || buf.getInt() != FILE_VERSION) {
+                System.err.println("Ignoring cache file "+f+": not a cache file, or an old format");
+                return false;
+            }
+            int p = buf.getInt();
+            int fv = buf.getInt();
+            long mod = buf.getLong();
+            if(p != Q.P || fv != FORMULA_VERSION || mod != Q.MOD) {
+                System.err.println("Ignoring cache file "+f+": written for p="+p+", modulus "+mod+", formula version "+fv);
+                return false;
+            }
+
+            long index = buf.getLong();
+            if(index < HEADER_SIZE || index > buf.limit()) {
+                System.err.println("Ignoring cache file "+f+": truncated");
+                return false;
+            }
+            buf.position((int) index);
+
+            /* read the whole index before touching any cache */
+            List<Table<?>> tables = tables();
+            for(Table<?> t : tables)
+                t.read(buf, (int) index, f, tables);
+            for(Table<?> t : tables)
+                t.attach();
+        } catch(BufferUnderflowException err) {
+            System.err.println("Ignoring cache file "+f+": truncated");
+            return false;
+        } catch(RuntimeException err) {
+            System.err.println("Ignoring cache file "+f+": corrupt ("+err+")");
+            return false;
+        }
+
+        return true;
+    }
+
+    /* a value in f that is only decoded once f is in use may still turn out to be bad; then the
+     * rest of f can't be trusted either, and every table goes back to computing. the first
+     * table to notice says so. */
+    static void ignore(File f, List<Table<?>> tables, String why)
+    {
+        boolean any = false;
+        synchronized(tables) {
+            for(Table<?> t : tables)
+                any |= t.detach();
+        }
+        if(any) System.err.println("Ignoring the rest of cache file "+f+": "+why);
+    }
+
+    /* writes everything currently known, computed or loaded, to f. the file is written next
+     * to f, under a name of its own, and renamed into place, so readers never see a partial
+     * file even when several processes save to f at once (as the workers of --coordinate do);
+     * the last to finish wins. */
+    static void save(File f)
+    {
+        File tmp;
+        try {
+            tmp = File.createTempFile(f.getName() + ".", ".tmp", f.getAbsoluteFile().getParentFile());
+        } catch(IOException err) {
+            System.err.println("Couldn't write cache file "+f+": "+err.getMessage());
+            return;
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.writeInt(Q.P);
+                out.writeInt(FORMULA_VERSION);
+                out.writeLong(Q.MOD);
+                out.writeLong(0); /* index offset, filled in below */
+
+                List<Table<?>> tables = tables();
+                List<Map<Monom,Integer>> offsets = new ArrayList<Map<Monom,Integer>>();
+                for(Table<?> t : tables)
+                    offsets.add(t.writeValues(out));
+
+                long index = out.size();
+                for(Map<Monom,Integer> off : offsets) {
+                    writeVarint(out, off.size());
+                    for(Entry<Monom,Integer> e : off.entrySet()) {
+                        MONOM.write(out, e.getKey());
+                        writeVarint(out, e.getValue());
+                    }
+                }
+                if(out.size() == Integer.MAX_VALUE) throw new IOException("cache file too large");
+                out.close();
+
+                RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+                try {
+                    raf.seek(HEADER_SIZE - 8);
+                    raf.writeLong(index);
+                } finally {
+                    raf.close();
+                }
+            } finally {
+                out.close();
+            }
+
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException err) {
+            System.err.println("Couldn't write cache file "+f+": "+err.getMessage());
+            tmp.delete();
+        }
+    }
+
+    /* one of the Monom caches, with values of type RSet<T> */
+    static class Table<T extends Comparable<T>>
+    {
+        final Memo<Monom,RSet<T>> memo;
+        final Codec<T> codec;
+
+        Table(Memo<Monom,RSet<T>> memo, Codec<T> codec) {
+            this.memo = memo;
+            this.codec = codec;
+        }
+
+        private Store<Monom,RSet<T>> store;
+
+        /* reads this table's part of the index; values lie between the header and end. the
+         * values are decoded on demand, and a bad one detaches all of f's tables */
+        void read(ByteBuffer buf, int end, final File f, final List<Table<?>> tables)
+        {
+            int n = (int) readVarint(buf);
+            if(n < 0 || n > buf.remaining())
+                throw new IllegalStateException("bad index");
+            final Map<Monom,Integer> index = new HashMap<Monom,Integer>(2*n);
+            for(int i = 0; i < n; i++) {
+                Monom key = MONOM.read(buf);
+                long off = readVarint(buf);
+                if(off < HEADER_SIZE || off >= end)
+                    throw new IllegalStateException("bad offset "+off);
+                index.put(key, (int) off);
+            }
+
+            final ByteBuffer data = buf.duplicate();
+            store = new Store<Monom,RSet<T>>() {
+                @Override public RSet<T> load(Monom key) {
+                    Integer off = index.get(key);
+                    if(off == null) return null;
+                    ByteBuffer b = data.duplicate();
+                    b.position(off);
+                    try {
+                        return readRSet(b, codec);
+                    } catch(BufferUnderflowException err) {
+                        ignore(f, tables, "truncated value");
+                    } catch(RuntimeException err) {
+                        ignore(f, tables, "corrupt value ("+err+")");
+                    }
+                    return null;
+                }
+                @Override public Collection<Monom> keys() {
+                    return index.keySet();
+                }
+            };
+        }
+
+        /* installs the file, once read, as the memo's store */
+        void attach()
+        {
+            memo.store = store;
+        }
+
+        /* stops using the file; false if it wasn't in use */
+        boolean detach()
+        {
+            if(store == null || memo.store != store)
+                return false;
+            memo.store = null;
+            return true;
+        }
+
+        /* writes the values of the table, returning where each one went */
+        Map<Monom,Integer> writeValues(DataOutputStream out) throws IOException
+        {
+            Map<Monom,RSet<T>> vals = memo.snapshot();
+            Store<Monom,RSet<T>> st = memo.store;
+            if(st != null) {
+                for(Monom key : st.keys()) {
+                    if(vals.containsKey(key)) continue;
+                    RSet<T> v = st.load(key);
+                    if(v != null) vals.put(key, v); /* null: the file went bad */
+                }
+            }
+
+            Map<Monom,Integer> ret = new HashMap<Monom,Integer>(2*vals.size());
+            for(Entry<Monom,RSet<T>> e : vals.entrySet()) {
+                ret.put(e.getKey(), out.size());
+                writeRSet(out, e.getValue(), codec);
+            }
+            return ret;
+        }
+    }
+
+    /* encoding of basis elements */
+    static abstract class Codec<T>
+    {
+        abstract void write(DataOutput out, T t) throws IOException;
+        abstract T read(ByteBuffer buf);
+    }
+
+    final static Codec<Monom> MONOM = new Codec<Monom>() {
+        @Override void write(DataOutput out, Monom m) throws IOException {
+            writeVarint(out, m.exp.length);
+            for(int e : m.exp)
+                writeVarint(out, e);
+        }
+        @Override Monom read(ByteBuffer buf) {
+            long len = readVarint(buf);
+            if(len < 0 || len > buf.remaining()) /* each exponent takes a byte at least */
+                throw new BufferUnderflowException();
+            int[] exp = new int[(int) len];
+            for(int i = 0; i < exp.length; i++)
+                exp[i] = (int) readVarint(buf);
+            return Monom.of(exp);
+        }
+    };
+
+    final static Codec<MonomInMT> MONOMINMT = new Codec<MonomInMT>() {
+        @Override void write(DataOutput out, MonomInMT m) throws IOException {
+            MONOM.write(out, m.m);
+            MONOM.write(out, m.t);
+        }
+        @Override MonomInMT read(ByteBuffer buf) {
+            Monom m = MONOM.read(buf);
+            return new MonomInMT(m, MONOM.read(buf));
+        }
+    };
+
+    final static Codec<DiagonalEntry> DIAGONAL = new Codec<DiagonalEntry>() {
+        @Override void write(DataOutput out, DiagonalEntry de) throws IOException {
+            MONOM.write(out, de.coeff);
+            MONOM.write(out, de.a);
+            MONOM.write(out, de.b);
+        }
+        @Override DiagonalEntry read(ByteBuffer buf) {
+            Monom c = MONOM.read(buf);
+            Monom a = MONOM.read(buf);
+            return new DiagonalEntry(c, a, MONOM.read(buf));
+        }
+    };
+
+    final static Codec<BPCobar> BPCOBAR = new Codec<BPCobar>() {
+        @Override void write(DataOutput out, BPCobar b) throws IOException {
+            out.writeBoolean(b.inV);
+            MONOM.write(out, b.coeff);
+            writeVarint(out, b.entries.length);
+            for(Monom e : b.entries)
+                MONOM.write(out, e);
+        }
+        @Override BPCobar read(ByteBuffer buf) {
+            boolean inV = (buf.get() != 0);
+            Monom c = MONOM.read(buf);
+            long len = readVarint(buf);
+            if(len < 0 || len > buf.remaining())
+                throw new BufferUnderflowException();
+            Monom[] entries = new Monom[(int) len];
+            for(int i = 0; i < entries.length; i++)
+                entries[i] = MONOM.read(buf);
+            return new BPCobar(c, entries, inV);
+        }
+    };
+
+    static <T extends Comparable<T>> void writeRSet(DataOutput out, RSet<T> r, Codec<T> codec) throws IOException
+    {
+        writeVarint(out, r.size());
+        for(Entry<T,Q> e : r.entrySet()) {
+            codec.write(out, e.getKey());
+            writeQ(out, e.getValue());
+        }
+    }
+
+    static <T extends Comparable<T>> RSet<T> readRSet(ByteBuffer buf, Codec<T> codec)
+    {
+        long n = readVarint(buf);
+        if(n < 0 || n > buf.remaining()) /* each term takes a few bytes at least */
+            throw new BufferUnderflowException();
+        RSet<T> ret = new RSet<T>();
+        for(long i = 0; i < n; i++) {
+            T t = codec.read(buf);
+            ret.add(t, readQ(buf));
+        }
+        return ret;
+    }
+
+    static void writeQ(DataOutput out, Q q) throws IOException
+    {
+        if(q.bn == null) {
+            out.writeByte(0);
+            writeVarint(out, (q.n << 1) ^ (q.n >> 63));
+            writeVarint(out, q.d);
+        } else {
+            out.writeByte(1);
+            byte[] n = q.bn.toByteArray();
+            byte[] d = q.bd.toByteArray();
+            writeVarint(out, n.length);
+            out.write(n);
+            writeVarint(out, d.length);
+            out.write(d);
+        }
+    }
+
+    static Q readQ(ByteBuffer buf)
+    {
+        if(buf.get() == 0) {
+            long z = readVarint(buf);
+            return new Q((z >>> 1) ^ -(z & 1), readVarint(buf));
+        }
+        byte[] n = readBytes(buf);
+        byte[] d = readBytes(buf);
+        return new Q(new BigInteger(n), new BigInteger(d));
+    }
+
+    /* a length, then that many bytes */
+    private static byte[] readBytes(ByteBuffer buf)
+    {
+        long len = readVarint(buf);
+        if(len < 0 || len > buf.remaining())
+            throw new BufferUnderflowException();
+        byte[] ret = new byte[(int) len];
+        buf.get(ret);
+        return ret;
+    }
+
+    static void writeVarint(DataOutput out, long v) throws IOException
+    {
+        while((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    static long readVarint(ByteBuffer buf)
+    {
+        long ret = 0;
+        for(int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            ret |= (long) (b & 0x7F) << shift;
+            if(b >= 0) return ret;
+        }
+    }
+}
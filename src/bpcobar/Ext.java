@@ -0,0 +1,250 @@
+package bpcobar;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.Map.Entry;
+
+/* the cohomology of the cobar complex mod p in one bidegree (s, t): the matrices of d into and
+ * out of C^s in internal degree t (see Matrix), reduced by sparse Gaussian elimination over F_p.
+ *
+ * rows are indexed by the sorted basis, so the pivot of a column is its largest term in
+ * BPCobar order. columns are reduced in batches: the columns of a batch are first reduced in
+ * parallel against the pivots of the earlier batches, which no longer change, and then one
+ * after another against each other. */
+class Ext
+{
+    static void run(int s, int degree, PrintStream out) throws IOException
+    {
+        long start = System.nanoTime();
+        int p = Q.P;
+
+        SortedMap<Integer,List<Monom>> mons = Monom.upToDegree(degree);
+        List<BPCobar> prev = (s > 0) ? Matrix.basis(s-1, degree, mons) : new ArrayList<BPCobar>();
+        List<BPCobar> here = Matrix.basis(s, degree, mons);
+        List<BPCobar> next = Matrix.basis(s+1, degree, mons);
+
+        /* the kernel of d out of C^s */
+        Reduction out1 = new Reduction(next.size(), p, true);
+        out1.add(vectors(Matrix.columns(here), next, p));
+        List<Vec> kernel = out1.kernel();
+
+        /* the image of d into C^s, and then the cocycles that are independent of it */
+        Reduction in = new Reduction(here.size(), p, false);
+        in.add(vectors(Matrix.columns(prev), here, p));
+        int image = in.rank;
+        List<Vec> classes = in.add(kernel.toArray(new Vec[kernel.size()]));
+
+        out.printf("H^%d in internal degree %d, mod %d: C^%d has dimension %d; d has kernel %d and rank %d%n",
+            s, degree, p, s, here.size(), kernel.size(), out1.rank);
+        out.printf("the image of d from C^%d has dimension %d, so H^%d has dimension %d%n",
+            s-1, image, s, classes.size());
+        if(! classes.isEmpty())
+            out.println("representative cocycles:");
+        Writer w = new OutputStreamWriter(out);
+        Printer pr = new Printer(w);
+        for(Vec v : classes) {
+            pr.println(v.toRSet(here));
+            w.flush();
+        }
+        out.printf("(%.1f s)%n", (System.nanoTime() - start) / 1e9);
+    }
+
+    /* the columns as vectors mod p over the given row basis */
+    static Vec[] vectors(List<RSet<BPCobar>> cols, List<BPCobar> rows, int p)
+    {
+        Map<BPCobar,Integer> index = new HashMap<BPCobar,Integer>(2 * rows.size());
+        for(int i = 0; i < rows.size(); i++)
+            index.put(rows.get(i), i);
+
+        Vec[] ret = new Vec[cols.size()];
+        for(int j = 0; j < ret.length; j++) {
+            RSet<BPCobar> col = cols.get(j);
+            int[] idx = new int[col.size()];
+            int[] val = new int[col.size()];
+            int n = 0;
+            for(Entry<BPCobar,Q> e : col.sortedEntries()) {
+                Integer i = index.get(e.getKey());
+                if(i == null)
+                    throw new IllegalStateException("term "+e.getKey()+" outside the basis");
+                int r = residue(e.getValue(), p);
+                if(r == 0)
+                    continue;
+                idx[n] = i;
+                val[n++] = r;
+            }
+            ret[j] = new Vec(Arrays.copyOf(idx, n), Arrays.copyOf(val, n));
+        }
+        return ret;
+    }
+
+    /* q mod p, for q p-integral */
+    static int residue(Q q, int p)
+    {
+        BigInteger bp = BigInteger.valueOf(p);
+        BigInteger n = (q.bn == null) ? BigInteger.valueOf(q.n) : q.bn;
+        BigInteger d = (q.bn == null) ? BigInteger.valueOf(q.d) : q.bd;
+        return n.multiply(d.modInverse(bp)).mod(bp).intValue();
+    }
+
+    static int inverse(int a, int p)
+    {
+        return BigInteger.valueOf(a).modInverse(BigInteger.valueOf(p)).intValue();
+    }
+
+    /* a sparse vector mod p: the nonzero entries, by increasing index */
+    static class Vec
+    {
+        final int[] idx, val;
+
+        Vec(int[] idx, int[] val) {
+            this.idx = idx;
+            this.val = val;
+        }
+
+        static Vec unit(int i) {
+            return new Vec(new int[] {i}, new int[] {1});
+        }
+
+        boolean isZero() {
+            return idx.length == 0;
+        }
+
+        int low() {
+            return idx[idx.length - 1];
+        }
+
+        int lowVal() {
+            return val[val.length - 1];
+        }
+
+        /* this + a o */
+        Vec plus(int a, Vec o, int p)
+        {
+            int[] ri = new int[idx.length + o.idx.length];
+            int[] rv = new int[ri.length];
+            int i = 0, j = 0, n = 0;
+            while(i < idx.length || j < o.idx.length) {
+                int v, at;
+                if(j == o.idx.length || (i < idx.length && idx[i] < o.idx[j])) {
+                    at = idx[i];
+                    v = val[i++];
+                } else if(i == idx.length || o.idx[j] < idx[i]) {
+                    at = o.idx[j];
+                    v = (a * o.val[j++]) % p;
+                } else {
+                    at = idx[i];
+                    v = (val[i++] + a * o.val[j++]) % p;
+                }
+                if(v != 0) {
+                    ri[n] = at;
+                    rv[n++] = v;
+                }
+            }
+            return new Vec(Arrays.copyOf(ri, n), Arrays.copyOf(rv, n));
+        }
+
+        Vec times(int a, int p)
+        {
+            int[] rv = new int[val.length];
+            for(int i = 0; i < val.length; i++)
+                rv[i] = (val[i] * a) % p;
+            return new Vec(idx, rv);
+        }
+
+        RSet<BPCobar> toRSet(List<BPCobar> basis)
+        {
+            RSet<BPCobar> ret = new RSet<BPCobar>();
+            for(int i = 0; i < idx.length; i++)
+                ret.add(basis.get(idx[i]), new Q(val[i]));
+            return ret;
+        }
+    }
+
+    /* column reduction. reduced columns with a pivot are scaled so that the pivot is 1. with
+     * tracking, each column also carries the combination of the input columns it now is, so
+     * the columns that reduce to 0 give a basis of the kernel. */
+    static class Reduction
+    {
+        final static int BATCH = 256;
+
+        final int p;
+        final boolean track;
+        final int[] pivotOf; /* row -> the column with that pivot, or -1 */
+        final List<Vec> cols = new ArrayList<Vec>();
+        final List<Vec> combs = new ArrayList<Vec>();
+        int rank = 0;
+
+        Reduction(int rows, int p, boolean track) {
+            this.p = p;
+            this.track = track;
+            pivotOf = new int[rows];
+            Arrays.fill(pivotOf, -1);
+        }
+
+        /* reduces more columns against everything so far; returns those not reduced to 0 */
+        List<Vec> add(Vec[] in)
+        {
+            int base = cols.size();
+            for(int j = 0; j < in.length; j++) {
+                cols.add(in[j]);
+                combs.add(track ? Vec.unit(base + j) : null);
+            }
+
+            List<Vec> ret = new ArrayList<Vec>();
+            for(int lo = base; lo < cols.size(); lo += BATCH) {
+                final int from = lo, to = Math.min(lo + BATCH, cols.size());
+
+                /* the pivots before this batch are fixed, so this part is independent per column */
+                Par.forEach(to - from, new Step() {
+                    @Override public void run(int k) {
+                        reduce(from + k, from);
+                    }
+                });
+
+                for(int j = from; j < to; j++) {
+                    reduce(j, j);
+                    Vec c = cols.get(j);
+                    if(c.isZero())
+                        continue;
+                    int a = inverse(c.lowVal(), p);
+                    cols.set(j, c = c.times(a, p));
+                    if(track)
+                        combs.set(j, combs.get(j).times(a, p));
+                    pivotOf[c.low()] = j;
+                    rank++;
+                    ret.add(c);
+                }
+            }
+            return ret;
+        }
+
+        /* clears the pivot of column j against the pivots of columns before limit */
+        private void reduce(int j, int limit)
+        {
+            Vec c = cols.get(j);
+            Vec t = combs.get(j);
+            while(! c.isZero()) {
+                int k = pivotOf[c.low()];
+                if(k < 0 || k >= limit)
+                    break;
+                int a = p - c.lowVal();
+                c = c.plus(a, cols.get(k), p);
+                if(track)
+                    t = t.plus(a, combs.get(k), p);
+            }
+            cols.set(j, c);
+            combs.set(j, t);
+        }
+
+        /* the combinations of input columns that have reduced to 0 */
+        List<Vec> kernel()
+        {
+            List<Vec> ret = new ArrayList<Vec>();
+            for(int j = 0; j < cols.size(); j++)
+                if(cols.get(j).isZero())
+                    ret.add(combs.get(j));
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package bpcobar;
+
+import java.io.*;
+import java.util.*;
+import java.util.Map.Entry;
+
+/* the matrix of d from cohomological degree s to s+1 in one internal degree, on the basis of
+ * cobar words c [ t^I1 | ... | t^Is ] with c a v-monomial and every entry of positive degree.
+ * the columns are independent boundaries, computed in parallel in parallel mode, all through
+ * the same caches.
+ *
+ * PREFIX.mtx gets the matrix in Matrix Market coordinate format (rows index degree s+1, columns
+ * degree s, both counted from 1). PREFIX.rows and PREFIX.cols get the two bases, one element per
+ * line in the --format style, so line i labels row or column i. */
+class Matrix
+{
+    static void export(int s, int degree, String prefix) throws IOException
+    {
+        long start = System.nanoTime();
+
+        SortedMap<Integer,List<Monom>> mons = Monom.upToDegree(degree);
+        List<BPCobar> cols = basis(s, degree, mons);
+        List<BPCobar> rows = basis(s+1, degree, mons);
+
+        Map<BPCobar,Integer> rowIndex = new HashMap<BPCobar,Integer>(2 * rows.size());
+        for(int i = 0; i < rows.size(); i++)
+            rowIndex.put(rows.get(i), i+1);
+
+        List<RSet<BPCobar>> images = columns(cols);
+
+        long nnz = 0;
+        for(RSet<BPCobar> im : images)
+            nnz += im.size();
+
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(prefix + ".mtx")));
+        try {
+            out.println("%%MatrixMarket matrix coordinate integer general");
+            out.println("% d: C^"+s+" -> C^"+(s+1)+" in internal degree "+degree+(Q.MOD != 0 ? ", mod "+BPCobarMain.modulus : ""));
+            out.println(rows.size()+" "+cols.size()+" "+nnz);
+            for(int j = 0; j < cols.size(); j++) {
+                for(Entry<BPCobar,Q> e : images.get(j).sortedEntries()) {
+                    Integer i = rowIndex.get(e.getKey());
+                    if(i == null)
+                        throw new IllegalStateException("d"+cols.get(j)+" has a term "+e.getKey()+" outside the basis");
+                    Q q = e.getValue();
+                    if(! q.isIntegral())
+                        throw new IllegalStateException("d"+cols.get(j)+" has a non-integral coefficient "+q);
+                    out.println(i+" "+(j+1)+" "+q);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        writeLabels(prefix + ".rows", rows);
+        writeLabels(prefix + ".cols", cols);
+
+        System.err.printf("Wrote a %d x %d matrix with %d entries to %s.mtx in %.1f s%n",
+            rows.size(), cols.size(), nnz, prefix, (System.nanoTime() - start) / 1e9);
+    }
+
+    /* the boundary of each element of the basis */
+    static List<RSet<BPCobar>> columns(final List<BPCobar> basis)
+    {
+        final List<RSet<BPCobar>> ret = new ArrayList<RSet<BPCobar>>(Collections.<RSet<BPCobar>>nCopies(basis.size(), null));
+        Par.forEach(basis.size(), new Step() {
+            @Override public void run(int k) {
+                ret.set(k, BPCobarMain.vToVBoundary(new RSet<BPCobar>(basis.get(k))));
+            }
+        });
+        return ret;
+    }
+
+    /* the cobar words of length s and the given internal degree, sorted */
+    static List<BPCobar> basis(int s, int degree, SortedMap<Integer,List<Monom>> mons)
+    {
+        List<BPCobar> ret = new ArrayList<BPCobar>();
+        words(new Monom/*T*/[s], 0, degree, mons, ret);
+        Collections.sort(ret);
+        return ret;
+    }
+
+    /* fills in entries[i ...] and then the coefficient, using up exactly room degrees */
+    private static void words(Monom/*T*/[] entries, int i, int room, SortedMap<Integer,List<Monom>> mons, List<BPCobar> out)
+    {
+        if(i == entries.length) {
+            List<Monom> cs;
+            if(room == 0)
+                cs = Collections.singletonList(Monom.ONE);
+            else if((cs = mons.get(room)) == null)
+                return;
+            for(Monom c : cs)
+                if(! BPCobar.inIdeal(c))
+                    out.add(new BPCobar(c, entries.clone(), true));
+            return;
+        }
+
+        /* each remaining entry needs degree at least 2(p-1) */
+        int rest = (entries.length - i - 1) * 2 * (Q.P - 1);
+        for(List<Monom> level : mons.headMap(room - rest + 1).values()) {
+            for(Monom t : level) {
+                entries[i] = t;
+                words(entries, i+1, room - t.degree(), mons, out);
+            }
+        }
+    }
+
+    private static void writeLabels(String file, List<BPCobar> basis) throws IOException
+    {
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            Printer pr = new Printer(out);
+            for(BPCobar b : basis) {
+                pr.print(b);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
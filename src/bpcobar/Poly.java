@@ -0,0 +1,287 @@
+package bpcobar;
+
+import java.util.*;
+import java.util.Map.Entry;
+
+/* the product of two sums of monomials (or pairs or triples of monomials, multiplied
+ * componentwise), as used throughout the structure formulas. rather than multiplying every
+ * pair of terms as objects, the exponents of both factors are laid out in flat int arrays,
+ * each product row is summed into a scratch row and accumulated in an open-addressing table
+ * keyed on the row, and objects are only made for the terms of the result.
+ *
+ * coefficients are accumulated in one of three lanes: residues in modular mode; longs when
+ * every coefficient is a small integer, which is the usual case; or else Q. if a long sum
+ * overflows, the product is redone in Q. */
+class Poly
+{
+    /* below this many pairs, multiplying the objects directly is cheaper */
+    final static int SMALL = 16;
+
+    /* how a term breaks into monomials, and how to put it back together */
+    static abstract class Shape<T>
+    {
+        final int parts;
+
+        Shape(int parts) {
+            this.parts = parts;
+        }
+
+        abstract Monom part(T t, int i);
+        abstract T make(Monom[] ms);
+        abstract T times(T a, T b);
+    }
+
+    final static Shape<Monom> MONOM = new Shape<Monom>(1) {
+        @Override Monom part(Monom t, int i) { return t; }
+        @Override Monom make(Monom[] ms) { return ms[0]; }
+        @Override Monom times(Monom a, Monom b) { return a.times(b); }
+    };
+
+    final static Shape<MonomInMT> MONOMINMT = new Shape<MonomInMT>(2) {
+        @Override Monom part(MonomInMT t, int i) { return (i == 0) ? t.m : t.t; }
+        @Override MonomInMT make(Monom[] ms) { return new MonomInMT(ms[0], ms[1]); }
+        @Override MonomInMT times(MonomInMT a, MonomInMT b) { return a.times(b); }
+    };
+
+    final static Shape<DiagonalEntry> DIAGONAL = new Shape<DiagonalEntry>(3) {
+        @Override Monom part(DiagonalEntry t, int i) { return (i == 0) ? t.coeff : (i == 1) ? t.a : t.b; }
+        @Override DiagonalEntry make(Monom[] ms) { return new DiagonalEntry(ms[0], ms[1], ms[2]); }
+        @Override DiagonalEntry times(DiagonalEntry a, DiagonalEntry b) { return a.times(b); }
+    };
+
+    static <T extends Comparable<T>> RSet<T> times(RSet<T> a, RSet<T> b, Shape<T> shape)
+    {
+        if((long) a.size() * b.size() < SMALL) {
+            RSet<T> ret = new RSet<T>();
+            for(Entry<T,Q> ea : a.entrySet())
+                for(Entry<T,Q> eb : b.entrySet())
+                    ret.add(shape.times(ea.getKey(), eb.getKey()), ea.getValue().times(eb.getValue()));
+            return ret;
+        }
+
+        /* where each part starts in a row: wide enough for either factor */
+        int[] off = new int[shape.parts + 1];
+        for(int i = 0; i < shape.parts; i++) {
+            int w = 0;
+            for(T t : a.keySet())
+                w = Math.max(w, shape.part(t, i).exp.length);
+            for(T t : b.keySet())
+                w = Math.max(w, shape.part(t, i).exp.length);
+            off[i+1] = off[i] + w;
+        }
+
+        Flat fa = new Flat(a, shape, off);
+        Flat fb = new Flat(b, shape, off);
+
+        Table tab;
+        if(Q.MOD != 0)
+            tab = product(fa, fb, Table.MOD);
+        else if(fa.small && fb.small) {
+            tab = product(fa, fb, Table.LONG);
+            if(tab == null) /* overflow */
+                tab = product(fa, fb, Table.RATIONAL);
+        } else tab = product(fa, fb, Table.RATIONAL);
+
+        return tab.result(shape, off);
+    }
+
+    private static Table product(Flat fa, Flat fb, int lane)
+    {
+        int w = fa.width;
+        Table tab = new Table(w, lane, fa.size + fb.size);
+        int[] row = new int[w];
+        for(int i = 0; i < fa.size; i++) {
+            int ia = i * w;
+            for(int j = 0; j < fb.size; j++) {
+                int jb = j * w;
+                for(int k = 0; k < w; k++)
+                    row[k] = fa.exps[ia + k] + fb.exps[jb + k];
+                boolean ok;
+                switch(lane) {
+                    case Table.MOD:
+                        ok = tab.addMod(row, Q.mulmod(fa.longs[i], fb.longs[j]));
+                        break;
+                    case Table.LONG:
+                        ok = tab.addLong(row, fa.longs[i] * fb.longs[j]); /* both below 2^31 */
+                        break;
+                    default:
+                        ok = tab.addQ(row, fa.qs[i].times(fb.qs[j]));
+                }
+                if(! ok)
+                    return null;
+            }
+        }
+        return tab;
+    }
+
+    /* one factor: its rows of exponents, and its coefficients as longs if they all fit */
+    private static class Flat
+    {
+        final int width, size;
+        final int[] exps;
+        final long[] longs;
+        final Q[] qs;
+        boolean small = true;
+
+        <T extends Comparable<T>> Flat(RSet<T> r, Shape<T> shape, int[] off)
+        {
+            width = off[shape.parts];
+            size = r.size();
+            exps = new int[size * width];
+            longs = new long[size];
+            qs = new Q[size];
+
+            int n = 0;
+            for(Entry<T,Q> e : r.entrySet()) {
+                for(int i = 0; i < shape.parts; i++) {
+                    int[] x = shape.part(e.getKey(), i).exp;
+                    System.arraycopy(x, 0, exps, n * width + off[i], x.length);
+                }
+                Q q = e.getValue();
+                qs[n] = q;
+                if(q.bn == null && q.d == 1)
+                    longs[n] = q.n;
+                else small = false;
+                n++;
+            }
+        }
+    }
+
+    /* the accumulating table: rows of exponents and their coefficients, in one of the lanes */
+    private static class Table
+    {
+        final static int MOD = 0, LONG = 1, RATIONAL = 2;
+
+        final int width, lane;
+        int[] rows;
+        int[] hashes;
+        boolean[] used;
+        long[] longs;
+        Q[] qs;
+        int count;
+
+        Table(int width, int lane, int expected)
+        {
+            this.width = width;
+            this.lane = lane;
+            int cap = 16;
+            while(cap < 2 * expected) cap <<= 1;
+            alloc(cap);
+        }
+
+        private void alloc(int cap)
+        {
+            rows = new int[cap * width];
+            hashes = new int[cap];
+            used = new boolean[cap];
+            if(lane == RATIONAL) qs = new Q[cap];
+            else longs = new long[cap];
+        }
+
+        private static int hash(int[] row, int from, int len)
+        {
+            int h = len;
+            for(int k = 0; k < len; k++)
+                h = h * 0x01000193 ^ row[from + k];
+            h *= 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        /* the slot holding row, claiming an empty one if it isn't there */
+        private int slot(int[] row)
+        {
+            if(2 * (count + 1) > used.length)
+                grow();
+            int h = hash(row, 0, width);
+            int mask = used.length - 1;
+            for(int i = h & mask; ; i = (i+1) & mask) {
+                if(! used[i]) {
+                    used[i] = true;
+                    hashes[i] = h;
+                    System.arraycopy(row, 0, rows, i * width, width);
+                    count++;
+                    return i;
+                }
+                if(hashes[i] == h && same(row, i))
+                    return i;
+            }
+        }
+
+        private boolean same(int[] row, int i)
+        {
+            int base = i * width;
+            for(int k = 0; k < width; k++)
+                if(rows[base + k] != row[k])
+                    return false;
+            return true;
+        }
+
+        private void grow()
+        {
+            int[] oldRows = rows, oldHashes = hashes;
+            boolean[] oldUsed = used;
+            long[] oldLongs = longs;
+            Q[] oldQs = qs;
+            alloc(2 * oldUsed.length);
+
+            int mask = used.length - 1;
+            for(int j = 0; j < oldUsed.length; j++) {
+                if(! oldUsed[j]) continue;
+                int i = oldHashes[j] & mask;
+                while(used[i])
+                    i = (i+1) & mask;
+                used[i] = true;
+                hashes[i] = oldHashes[j];
+                System.arraycopy(oldRows, j * width, rows, i * width, width);
+                if(oldQs != null) qs[i] = oldQs[j];
+                else longs[i] = oldLongs[j];
+            }
+        }
+
+        boolean addMod(int[] row, long c)
+        {
+            int i = slot(row);
+            long s = longs[i] + c;
+            longs[i] = (s >= Q.MOD) ? s - Q.MOD : s;
+            return true;
+        }
+
+        boolean addLong(int[] row, long c)
+        {
+            int i = slot(row);
+            long s = longs[i] + c;
+            if(((longs[i] ^ s) & (c ^ s)) < 0)
+                return false;
+            longs[i] = s;
+            return true;
+        }
+
+        boolean addQ(int[] row, Q c)
+        {
+            int i = slot(row);
+            qs[i] = (qs[i] == null) ? c : qs[i].plus(c);
+            return true;
+        }
+
+        <T extends Comparable<T>> RSet<T> result(Shape<T> shape, int[] off)
+        {
+            RSet<T> ret = new RSet<T>();
+            Monom[] ms = new Monom[shape.parts];
+            for(int i = 0; i < used.length; i++) {
+                if(! used[i]) continue;
+                Q q;
+                if(lane == RATIONAL) q = qs[i];
+                else if(longs[i] == 0) continue;
+                else if(lane == MOD) q = Q.residue(longs[i]);
+                else q = new Q(longs[i]);
+                if(q.isZero()) continue;
+
+                int base = i * width;
+                for(int p = 0; p < shape.parts; p++)
+                    ms[p] = Monom.of(Arrays.copyOfRange(rows, base + off[p], base + off[p+1]));
+                ret.add(shape.make(ms), q);
+            }
+            return ret;
+        }
+    }
+}
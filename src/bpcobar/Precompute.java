@@ -0,0 +1,46 @@
+package bpcobar;
+
+import java.util.*;
+
+/* fills the structure-formula tables (diagonal, right unit, m to v, v to m) for every monomial
+ * up to a given internal degree, so that queries don't pay for them the first time a large
+ * monomial turns up. monomials are taken a degree at a time, lowest first: a monomial needs
+ * its part in the lower generators and half the power of its top generator, a generator
+ * needs generators or their powers of lower degree, and all of these are of lower degree, so
+ * by the time a degree is reached everything it needs is already in the tables. within a
+ * degree the monomials are independent, and are done in parallel in parallel mode.
+ *
+ * this only helps if the tables stay in memory -- pick a --cache-budget that holds them, and
+ * use --cache to keep them for later runs. */
+class Precompute
+{
+    static void run(int maxDegree)
+    {
+        long start = System.nanoTime();
+
+        SortedMap<Integer,List<Monom>> byDegree = Monom.upToDegree(maxDegree);
+
+        int count = 0;
+        for(List<Monom> level : byDegree.values()) {
+            final List<Monom> ms = level;
+            Par.forEach(ms.size(), new Step() {
+                @Override public void run(int k) {
+                    fill(ms.get(k));
+                }
+            });
+            count += ms.size();
+        }
+
+        System.err.printf("Precomputed tables for %d monomials up to degree %d in %.1f s%n",
+            count, maxDegree, (System.nanoTime() - start) / 1e9);
+    }
+
+    /* the same exponents serve as an m, a v and a t monomial */
+    private static void fill(Monom m)
+    {
+        m.diagonal();
+        m.rightUnit();
+        m.mToV();
+        m.vToM();
+    }
+}
@@ -0,0 +1,150 @@
+package bpcobar;
+
+import java.io.*;
+import java.util.Map.Entry;
+
+/* writes elements straight to an Appendable (a Writer, a PrintStream, a StringBuilder), so
+ * printing a large result needs neither string concatenation nor a copy of the whole text.
+ *
+ * PRETTY is the usual one-term-per-line display. TERSE puts everything on one line in the
+ * input syntax, so it can be fed back in. MACHINE is one term per line with tab-separated
+ * fields -- the coefficient, then each monomial as its exponent vector (0 for 1), e.g.
+ * "-4 \t 0 \t 1,2" for -4 [ t1t2^2 ]. */
+class Printer
+{
+    enum Style { PRETTY, TERSE, MACHINE }
+
+    static Style style = Style.PRETTY; /* for results; set with --format */
+
+    /* something that knows how to print itself */
+    interface Printable
+    {
+        void print(Printer p) throws IOException;
+    }
+
+    final Appendable out;
+    final Style st;
+
+    Printer(Appendable out, Style st) {
+        this.out = out;
+        this.st = st;
+    }
+
+    Printer(Appendable out) {
+        this(out, style);
+    }
+
+    static String toString(Printable x)
+    {
+        StringBuilder sb = new StringBuilder();
+        try {
+            x.print(new Printer(sb, Style.PRETTY));
+        } catch(IOException err) {
+            throw new IllegalStateException(err); /* StringBuilder doesn't throw */
+        }
+        return sb.toString();
+    }
+
+    <T extends Comparable<T>> void print(RSet<T> r) throws IOException
+    {
+        boolean first = true;
+        for(Entry<T,Q> e : r.sortedEntries()) {
+            Q q = e.getValue();
+            switch(st) {
+                case PRETTY:
+                    if(!first) out.append("\n + ");
+                    if(! q.isOne()) {
+                        print(q);
+                        out.append(' ');
+                    }
+                    break;
+                case TERSE:
+                    if(!first) out.append(" + ");
+                    if(! q.isOne()) {
+                        print(q);
+                        out.append('*');
+                    }
+                    break;
+                case MACHINE:
+                    print(q);
+                    out.append('\t');
+                    break;
+            }
+            first = false;
+
+            T t = e.getKey();
+            if(t instanceof Printable) ((Printable) t).print(this);
+            else out.append(t.toString());
+            if(st == Style.MACHINE) out.append('\n');
+        }
+    }
+
+    /* prints r and ends the line; an empty r is printed as 0 */
+    <T extends Comparable<T>> void println(RSet<T> r) throws IOException
+    {
+        if(r.size() == 0) out.append('0');
+        print(r);
+        if(st != Style.MACHINE || r.size() == 0) out.append('\n');
+    }
+
+    void print(Q q) throws IOException
+    {
+        if(q.bn == null) {
+            out.append(Long.toString(q.n));
+            if(q.d != 1) out.append('/').append(Long.toString(q.d));
+        } else out.append(q.toString());
+    }
+
+    void print(Monom m, char c) throws IOException
+    {
+        int[] exp = m.exp;
+
+        if(st == Style.MACHINE) {
+            if(exp.length == 0) out.append('0');
+            for(int i = 0; i < exp.length; i++) {
+                if(i > 0) out.append(',');
+                out.append(Integer.toString(exp[i]));
+            }
+            return;
+        }
+
+        if(exp.length == 0) {
+            out.append('1');
+            return;
+        }
+        for(int i = 0; i < exp.length; i++) {
+            if(exp[i] == 0) continue;
+            out.append(c);
+            out.append(Integer.toString(i+1));
+            if(exp[i] > 1) out.append('^').append(Integer.toString(exp[i]));
+        }
+    }
+
+    void print(BPCobar b) throws IOException
+    {
+        char c = b.inV ? 'v' : 'm';
+        switch(st) {
+            case PRETTY:
+            case TERSE:
+                String sep = (st == Style.PRETTY) ? " | " : "|";
+                if(! b.coeff.isOne()) {
+                    print(b.coeff, c);
+                    out.append(' ');
+                }
+                out.append(st == Style.PRETTY ? "[ " : "[");
+                for(int i = 0; i < b.entries.length; i++) {
+                    if(i > 0) out.append(sep);
+                    print(b.entries[i], 't');
+                }
+                out.append(st == Style.PRETTY ? " ]" : "]");
+                break;
+            case MACHINE:
+                print(b.coeff, c);
+                for(Monom e : b.entries) {
+                    out.append('\t');
+                    print(e, 't');
+                }
+                break;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package bpcobar;
+
+import java.util.*;
+import java.util.Map.Entry;
+
+/* only part of a boundary: the terms matching one of a list of patterns (--select). a pattern
+ * is written like a term, c [ w1 | ... | ws ], where c may be * for any v-coefficient, an entry
+ * may be * for any entry, and the word may be * for any word: "v2 [ t1^2 | t1 ]" is one term,
+ * "* [ t1^2 | * ]" is every term of length 2 starting with t1^2, and "v2 *" every term with
+ * coefficient v2. patterns are separated by '+'.
+ *
+ * the patterns are pushed back through the computation, so that what can't reach them is
+ * dropped early:
+ *  - the boundary of a word of length s has length s+1, and its words come from the cofaces:
+ *    the first puts an entry in front, the last puts 1 at the end, and a middle one splits one
+ *    entry in two, multiplies the entries before it by something and leaves those after it be.
+ *    an input term whose word can't give the pattern's that way is skipped, and so is a coface
+ *    or a diagonal term that doesn't fit.
+ *  - pushing a coefficient left through an entry the pattern fixes, only the right-unit terms
+ *    that make exactly that entry are followed.
+ *  - the change of basis keeps internal degree, and the image of m1^e X in v is divisible by
+ *    v1^e, so a fixed v-coefficient bounds the m-coefficients as --max-degree and --max-v1 do.
+ * every check depends only on the term being made, so each m-term that is kept still gets all
+ * of its contributions, and the selected coefficients come out exactly as in the full
+ * boundary. */
+class Select
+{
+    static List<Pattern> patterns = null;
+
+    static class Pattern
+    {
+        final Monom/*V*/ v; /* null: any */
+        final Monom/*T*/[] word; /* null: any; a null entry: any entry */
+
+        Pattern(Monom/*V*/ v, Monom/*T*/[] word) {
+            this.v = v;
+            this.word = word;
+        }
+
+        boolean entry(int j, Monom/*T*/ t) {
+            return word == null || word[j] == null || word[j] == t;
+        }
+
+        boolean word(Monom/*T*/[] w) {
+            if(word == null) return true;
+            if(word.length != w.length) return false;
+            for(int j = 0; j < w.length; j++)
+                if(! entry(j, w[j]))
+                    return false;
+            return true;
+        }
+
+        /* whether an m-coefficient, or anything it divides, can still go to v */
+        boolean coeff(Monom/*M*/ m) {
+            return v == null || (m.degree() <= v.degree() && m.v1() <= v.v1());
+        }
+
+        boolean matches(BPCobar b) {
+            return (v == null || b.coeff == v) && word(b.entries);
+        }
+
+        /* the boundary term b in m may go to a term matching this */
+        boolean wants(BPCobar b) {
+            return coeff(b.coeff) && word(b.entries);
+        }
+
+        /* whether the first coface of a word w can match */
+        boolean first(Monom/*T*/[] w) {
+            for(int j = 0; j < w.length; j++)
+                if(! entry(j+1, w[j]))
+                    return false;
+            return true;
+        }
+
+        boolean last(Monom/*T*/[] w) {
+            for(int j = 0; j < w.length; j++)
+                if(! entry(j, w[j]))
+                    return false;
+            return entry(w.length, Monom.ONE);
+        }
+
+        /* the middle coface splitting w[i] */
+        boolean middle(Monom/*T*/[] w, int i) {
+            if(word == null) return true;
+            for(int j = 0; j < i; j++)
+                if(word[j] != null && word[j].over(w[j]) == null)
+                    return false;
+            for(int j = i+1; j < w.length; j++)
+                if(! entry(j+1, w[j]))
+                    return false;
+            return word[i] == null || word[i+1] == null || word[i].degree() + word[i+1].degree() <= w[i].degree();
+        }
+
+        /* whether nothing is fixed among the first n entries */
+        boolean open(int n) {
+            if(word == null) return true;
+            for(int j = 0; j < n; j++)
+                if(word[j] != null)
+                    return false;
+            return true;
+        }
+
+        /* whether the input term b in v can contribute at all */
+        boolean reaches(BPCobar b) {
+            if(word == null) return true;
+            Monom/*T*/[] w = b.entries;
+            if(word.length != w.length + 1) return false;
+
+            /* d keeps internal degree, so a pattern without wildcards fixes it */
+            if(v != null) {
+                int deg = v.degree(), in = b.coeff.degree();
+                for(Monom t : word) {
+                    if(t == null) {
+                        deg = -1;
+                        break;
+                    }
+                    deg += t.degree();
+                }
+                for(Monom t : w)
+                    in += t.degree();
+                if(deg >= 0 && deg != in)
+                    return false;
+            }
+
+            if(first(w) || last(w))
+                return true;
+            for(int i = 0; i < w.length; i++)
+                if(middle(w, i))
+                    return true;
+            return false;
+        }
+    }
+
+    /* patterns separated by '+'; returns null, after saying why, if one doesn't parse */
+    static List<Pattern> parse(String spec)
+    {
+        List<Pattern> ret = new ArrayList<Pattern>();
+        for(String s : spec.split("\\+")) {
+            s = s.trim();
+            String c;
+            Monom/*T*/[] word;
+
+            int idx = s.indexOf('[');
+            if(idx >= 0) {
+                if(! s.endsWith("]")) {
+                    System.err.println("Error parsing pattern "+s+" --- no closing ]");
+                    return null;
+                }
+                c = s.substring(0, idx).trim();
+                List<Monom> entries = new ArrayList<Monom>();
+                for(String ent : s.substring(idx+1, s.length()-1).split("\\|")) {
+                    ent = ent.trim();
+                    if(ent.length() == 0) continue;
+                    Monom m = null;
+                    if(! ent.equals("*") && (m = Monom.parse(ent, "t")) == null)
+                        return null;
+                    entries.add(m);
+                }
+                word = entries.toArray(new Monom[entries.size()]);
+            } else if(s.equals("*")) {
+                c = "*";
+                word = null;
+            } else if(s.endsWith("*")) {
+                c = s.substring(0, s.length()-1).trim();
+                word = null;
+            } else {
+                c = s;
+                word = new Monom[0];
+            }
+
+            Monom/*V*/ v = null;
+            if(c.length() == 0)
+                v = Monom.ONE;
+            else if(! c.equals("*") && (v = Monom.parse(c, "v")) == null)
+                return null;
+            ret.add(new Pattern(v, word));
+        }
+        return ret;
+    }
+
+    /* BPCobarMain.scaledBoundary, for the selected terms only */
+    static RSet<BPCobar> scaledBoundary(RSet<BPCobar> initial)
+    {
+        Stats.Run st = Stats.enabled ? new Stats.Run() : null;
+
+        RSet<BPCobar> in = new RSet<BPCobar>();
+        for(Entry<BPCobar,Q> e : initial.entrySet()) {
+            for(Pattern pat : patterns) {
+                if(pat.reaches(e.getKey())) {
+                    in.add(e.getKey(), e.getValue());
+                    break;
+                }
+            }
+        }
+
+        RSet<BPCobar> inM = BPCobarMain.phase(st, Stats.VTOM, in, BPCobar.VTOM);
+        RSet<BPCobar> bound = BPCobarMain.phase(st, Stats.BOUNDARY, inM, BOUNDARY);
+        RSet<BPCobar> inV = BPCobarMain.phase(st, Stats.MTOV, bound, BPCobar.MTOV);
+
+        RSet<BPCobar> ret = new RSet<BPCobar>();
+        for(Entry<BPCobar,Q> e : inV.entrySet()) {
+            for(Pattern pat : patterns) {
+                if(pat.matches(e.getKey())) {
+                    ret.add(e.getKey(), e.getValue());
+                    break;
+                }
+            }
+        }
+
+        if(st != null) st.finish();
+        return ret;
+    }
+
+    /* the terms of the boundary that some pattern wants, each once: a term an earlier pattern
+     * wants was already counted in full when that pattern was done */
+    static final Linear<BPCobar,BPCobar> BOUNDARY = new Linear<BPCobar,BPCobar>() {
+        @Override public RSet<BPCobar> apply(BPCobar b) {
+            RSet<BPCobar> ret = new RSet<BPCobar>();
+            for(int k = 0; k < patterns.size(); k++) {
+                RSet<BPCobar> part = new RSet<BPCobar>();
+                boundary(b, patterns.get(k), part);
+                terms:
+                for(Entry<BPCobar,Q> e : part.entrySet()) {
+                    for(int j = 0; j < k; j++)
+                        if(patterns.get(j).wants(e.getKey()))
+                            continue terms;
+                    ret.add(e.getKey(), e.getValue());
+                }
+            }
+            return ret;
+        }
+    };
+
+    /* the terms of d(b) that pat wants, as BPCobar.coface makes them */
+    static void boundary(BPCobar b, Pattern pat, RSet<BPCobar> ret)
+    {
+        Monom/*M*/ c = b.coeff;
+        Monom/*T*/[] w = b.entries;
+        int s = w.length;
+        if(pat.word != null && pat.word.length != s+1)
+            return;
+
+        if(pat.first(w)) {
+            for(Entry<MonomInMT,Q> e : c.rightUnit().entrySet()) {
+                MonomInMT mon = e.getKey();
+                if(pat.entry(0, mon.t) && wanted(mon.m, pat))
+                    ret.add(new BPCobar(mon.m, mon.t, w), e.getValue());
+            }
+        }
+
+        if(! wanted(c, pat))
+            return;
+
+        for(int i = 0; i < s; i++) {
+            if(! pat.middle(w, i))
+                continue;
+            for(Entry<DiagonalEntry,Q> dee : w[i].diagonal().entrySet()) {
+                DiagonalEntry de = dee.getKey();
+                if(! pat.entry(i, de.a) || ! pat.entry(i+1, de.b))
+                    continue;
+                Monom/*T*/[] ent = new Monom/*T*/[s+1];
+                ent[i] = de.a;
+                ent[i+1] = de.b;
+                System.arraycopy(w, i+1, ent, i+2, s-i-1);
+                Q q = Q.sign(i+1).times(dee.getValue());
+
+                if(pat.open(i)) {
+                    /* nothing to steer by, so take the pushes from the table */
+                    RSet<BPCobar> part = new RSet<BPCobar>();
+                    BPCobar.normalizeCobar(c, w, i, de.coeff, Arrays.copyOfRange(ent, i, s+1), q, part);
+                    for(Entry<BPCobar,Q> e : part.entrySet())
+                        if(pat.coeff(e.getKey().coeff))
+                            ret.add(e.getKey(), e.getValue());
+                } else push(c, w, i, de.coeff, ent, q, pat, ret);
+            }
+        }
+
+        if(pat.last(w))
+            ret.add(b.extendByOne(), Q.sign(s+1));
+    }
+
+    /* adds q c [ w[0..k) | mid ent[k ...] ] to ret with mid pushed to the front, as
+     * BPCobar.push does, but taking at each fixed entry only the right-unit terms that make it */
+    private static void push(Monom/*M*/ c, Monom/*T*/[] w, int k, Monom/*M*/ mid, Monom/*T*/[] ent, Q q, Pattern pat, RSet<BPCobar> ret)
+    {
+        if(k == 0) {
+            Monom/*M*/ m = c.times(mid);
+            if(wanted(m, pat))
+                ret.add(new BPCobar(m, ent.clone()), q);
+            return;
+        }
+
+        Monom/*T*/ need = null;
+        if(pat.word[k-1] != null && (need = pat.word[k-1].over(w[k-1])) == null)
+            return;
+
+        RSet<MonomInMT> ru = mid.rightUnit();
+        if(Stats.enabled) Stats.reduction(k, ru.size());
+        for(Entry<MonomInMT,Q> e : ru.entrySet()) {
+            MonomInMT mon = e.getKey();
+            if(need != null && mon.t != need)
+                continue;
+            Q qq = q.times(e.getValue());
+            if(qq.isZero())
+                continue;
+            ent[k-1] = w[k-1].times(mon.t);
+            push(c, w, k-1, mon.m, ent, qq, pat, ret);
+        }
+    }
+
+    private static boolean wanted(Monom/*M*/ m, Pattern pat) {
+        return BPCobar.inRange(m) && pat.coeff(m);
+    }
+}
@@ -0,0 +1,97 @@
+package bpcobar;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/* a long-running process that answers boundary queries over a local socket, so that the
+ * structure-formula caches stay warm from one query to the next and across clients.
+ *
+ * the protocol is line-based, like batch mode: a client sends an element on one line (a line
+ * ending in '+' continues on the next), and gets back the boundary in the --format style,
+ * then a line "# X ms, N terms", then a line containing only ".". a syntax error or a failed
+ * computation is answered with a line starting "# " and the "." line. "quit" or end of input
+ * closes the connection. each client has its own thread; in parallel mode the queries
+ * themselves share the one pool. */
+class Server
+{
+    static void run(int port) throws IOException
+    {
+        ServerSocket ss = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        System.err.println("Listening on "+ss.getLocalSocketAddress());
+
+        /* nothing else ends the server, so save the tables when it's stopped */
+        if(BPCobarMain.cacheFile != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override public void run() {
+                    CacheFile.save(BPCobarMain.cacheFile);
+                }
+            });
+        }
+
+        ExecutorService clients = Executors.newCachedThreadPool();
+        while(true) {
+            final Socket sock = ss.accept();
+            clients.execute(new Runnable() {
+                @Override public void run() {
+                    serve(sock);
+                }
+            });
+        }
+    }
+
+    static void serve(Socket sock)
+    {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), "UTF-8"));
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(sock.getOutputStream(), "UTF-8")));
+
+            String line;
+            while((line = in.readLine()) != null) {
+                line = line.trim();
+                if(line.length() == 0)
+                    continue;
+                if(line.equals("quit"))
+                    break;
+
+                StringBuilder elt = new StringBuilder(line);
+                while(line.endsWith("+") && (line = in.readLine()) != null) {
+                    line = line.trim();
+                    elt.append(' ').append(line);
+                }
+
+                answer(elt.toString(), out);
+                out.println(".");
+                out.flush();
+            }
+        } catch(IOException err) {
+            /* the client went away */
+        } finally {
+            try {
+                sock.close();
+            } catch(IOException err) {
+            }
+        }
+    }
+
+    static void answer(String elt, PrintWriter out) throws IOException
+    {
+        long start = System.nanoTime();
+        RSet<BPCobar> result;
+        try {
+            RSet<BPCobar> initial = BPCobarMain.parse(elt);
+            if(initial == null) {
+                out.println("# syntax error");
+                return;
+            }
+            result = BPCobarMain.vToVBoundary(initial);
+        } catch(RuntimeException err) {
+            out.println("# failed: "+err);
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        new Printer(out).println(result);
+        out.println("# "+String.format("%.1f", elapsed / 1e6)+" ms, "+result.size()+" terms");
+    }
+}
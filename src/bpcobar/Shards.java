@@ -0,0 +1,152 @@
+package bpcobar;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.Map.Entry;
+
+/* one boundary computation split across processes that share nothing but a directory.
+ *
+ * the coordinator splits the element into shards of its terms and writes each to
+ * DIR/todo/NAME. a worker claims a shard by renaming it into DIR/claimed -- only one rename
+ * can succeed -- computes its boundary, and writes the partial sum to DIR/done/NAME. both are
+ * in the cache file's binary encoding, which keeps residues and large coefficients exact, and
+ * both are written by way of a temporary file and a rename, so nobody reads half a file. the
+ * coordinator then adds up the partial sums. in modular mode these are kept p^GUARD times too
+ * big, as within one process, and only the total is brought down to residues mod p^K.
+ *
+ * the coordinator starts some workers itself, works on shards too, and redoes any shard a
+ * dead worker left claimed once its own workers have exited; more workers can be started by
+ * hand, on any machine that sees DIR, with --work DIR and the same mode options. */
+class Shards
+{
+    final static int MAGIC = 0x42504350; /* "BPCP" */
+
+    static RSet<BPCobar> coordinate(File dir, RSet<BPCobar> elt, int shards, int spawn, List<String> options) throws IOException
+    {
+        long start = System.nanoTime();
+        File todo = new File(dir, "todo"), claimed = new File(dir, "claimed"), done = new File(dir, "done");
+        for(File d : new File[] {todo, claimed, done}) {
+            d.mkdirs();
+            for(File f : d.listFiles())
+                f.delete();
+        }
+
+        /* deal the terms out round-robin, so that similar terms spread evenly */
+        List<RSet<BPCobar>> parts = new ArrayList<RSet<BPCobar>>();
+        for(int i = 0; i < Math.min(shards, elt.size()); i++)
+            parts.add(new RSet<BPCobar>());
+        int k = 0;
+        for(Entry<BPCobar,Q> e : elt.sortedEntries())
+            parts.get(k++ % parts.size()).add(e.getKey(), e.getValue());
+
+        List<String> names = new ArrayList<String>();
+        for(int i = 0; i < parts.size(); i++) {
+            String name = String.format("shard-%05d", i);
+            File tmp = new File(dir, name + ".tmp");
+            write(tmp, parts.get(i));
+            Files.move(tmp.toPath(), new File(todo, name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            names.add(name);
+        }
+
+        List<Process> workers = new ArrayList<Process>();
+        for(int i = 0; i < spawn; i++) {
+            List<String> cmd = new ArrayList<String>();
+            cmd.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+            cmd.add("-cp");
+            cmd.add(System.getProperty("java.class.path"));
+            cmd.add("bpcobar.BPCobarMain");
+            cmd.addAll(options);
+            cmd.add("--work");
+            cmd.add(dir.getPath());
+            workers.add(new ProcessBuilder(cmd).redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start());
+        }
+
+        work(dir);
+        for(Process p : workers) {
+            try {
+                p.waitFor();
+            } catch(InterruptedException err) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        /* whatever is still claimed belongs to a worker that died, or to one started by hand
+         * that is still going; doing it again is harmless, since both write the same result */
+        for(File f : claimed.listFiles()) {
+            String name = f.getName().substring(0, f.getName().indexOf('@'));
+            if(! new File(done, name).exists())
+                f.renameTo(new File(todo, name));
+        }
+        work(dir);
+
+        RSet<BPCobar> ret = new RSet<BPCobar>();
+        for(String name : names) {
+            File f = new File(done, name);
+            while(! f.exists()) {
+                try {
+                    Thread.sleep(100);
+                } catch(InterruptedException err) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            ret.add(read(f), Q.ONE);
+        }
+        ret = BPCobarMain.descale(ret);
+
+        System.err.printf("%d shards (%d workers) in %.1f s%n", names.size(), spawn + 1, (System.nanoTime() - start) / 1e9);
+        return ret;
+    }
+
+    /* claims and computes shards until there are none left to claim */
+    static void work(File dir) throws IOException
+    {
+        File todo = new File(dir, "todo"), claimed = new File(dir, "claimed"), done = new File(dir, "done");
+        String me = java.lang.management.ManagementFactory.getRuntimeMXBean().getName();
+
+        while(true) {
+            File[] left = todo.listFiles();
+            if(left == null || left.length == 0)
+                return;
+            Arrays.sort(left);
+
+            for(File f : left) {
+                File mine = new File(claimed, f.getName() + "@" + me);
+                try {
+                    Files.move(f.toPath(), mine.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch(IOException err) {
+                    continue; /* someone else got it */
+                }
+
+                File tmp = new File(done, f.getName() + "@" + me + ".tmp");
+                write(tmp, BPCobarMain.scaledBoundary(read(mine)));
+                Files.move(tmp.toPath(), new File(done, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                mine.delete();
+            }
+        }
+    }
+
+    static void write(File f, RSet<BPCobar> r) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(CacheFile.FILE_VERSION);
+            CacheFile.writeRSet(out, r, CacheFile.BPCOBAR);
+        } finally {
+            out.close();
+        }
+    }
+
+    static RSet<BPCobar> read(File f) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+        if(buf.getInt() != MAGIC || buf.getInt() != CacheFile.FILE_VERSION)
+            throw new IOException(f+" is not a shard or a partial sum");
+        return CacheFile.readRSet(buf, CacheFile.BPCOBAR);
+    }
+}
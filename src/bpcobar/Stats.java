@@ -0,0 +1,238 @@
+package bpcobar;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.*;
+import javax.management.ObjectName;
+
+/* instrumentation of vToVBoundary: wall time and term counts for each of its three phases,
+ * the largest image of a single term in each phase, the shape of the normalizeCobar
+ * recursion, and cache hit ratios. nothing is counted unless enabled is set (--stats or
+ * --jmx). a Run holds the figures for one computation; the static counters are totals since
+ * startup, and are what JMX shows.
+ *
+ * several computations can be going at once (the server answers queries concurrently), so the
+ * Run a reduction step belongs to is found through the thread: a Run is current on the thread
+ * that made it until it finishes, and Par's tasks take it along to the pool's threads. the
+ * cache figures of a Run are differences of the shared counters, and so include whatever
+ * else ran at the same time. */
+class Stats implements StatsMXBean
+{
+    static volatile boolean enabled = false;
+
+    final static String[] PHASES = { "vToM", "boundary", "mToV" };
+    final static int VTOM = 0, BOUNDARY = 1, MTOV = 2;
+
+    final static AtomicLong computations = new AtomicLong();
+    final static AtomicLong[] phaseNanos = counters(), phaseIn = counters(), phaseOut = counters(), phasePeak = counters();
+
+    /* one normalizeCobar reduction step: pushing a coefficient left past one entry */
+    final static AtomicLong reductions = new AtomicLong();
+    final static AtomicLong fanout = new AtomicLong();
+    final static AtomicInteger maxDepth = new AtomicInteger();
+    final static AtomicInteger maxFanout = new AtomicInteger();
+
+    private final static ThreadLocal<Run> current = new ThreadLocal<Run>();
+    private final static ThreadLocal<Run> last = new ThreadLocal<Run>();
+
+    /* the computation going on in this thread, or null */
+    static Run current()
+    {
+        return current.get();
+    }
+
+    /* makes r the current computation of this thread; returns the one it replaces */
+    static Run enter(Run r)
+    {
+        Run ret = current.get();
+        if(ret != r) current.set(r);
+        return ret;
+    }
+
+    /* the most recent computation this thread finished */
+    static Run last()
+    {
+        return last.get();
+    }
+
+    private static AtomicLong[] counters()
+    {
+        AtomicLong[] ret = new AtomicLong[PHASES.length];
+        for(int i = 0; i < ret.length; i++)
+            ret[i] = new AtomicLong();
+        return ret;
+    }
+
+    static void raise(AtomicLong a, long v)
+    {
+        long old;
+        while(v > (old = a.get()) && ! a.compareAndSet(old, v));
+    }
+
+    static void raise(AtomicInteger a, int v)
+    {
+        int old;
+        while(v > (old = a.get()) && ! a.compareAndSet(old, v));
+    }
+
+    /* called by normalizeCobar for each reduction step, with the number of entries still to
+     * be passed and the number of right-unit terms the step fans out into */
+    static void reduction(int depth, int fan)
+    {
+        reductions.incrementAndGet();
+        fanout.addAndGet(fan);
+        raise(maxDepth, depth);
+        raise(maxFanout, fan);
+
+        Run r = current.get();
+        if(r != null) {
+            r.reductions.incrementAndGet();
+            r.fanout.addAndGet(fan);
+            raise(r.maxDepth, depth);
+            raise(r.maxFanout, fan);
+        }
+    }
+
+    /* exposes the counters over JMX */
+    static void register()
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Stats(), new ObjectName("bpcobar:type=Stats"));
+        } catch(Exception err) {
+            System.err.println("Couldn't register the JMX bean: "+err);
+        }
+    }
+
+    /* the figures for one vToVBoundary computation */
+    static class Run
+    {
+        final long[] nanos = new long[PHASES.length];
+        final long[] in = new long[PHASES.length];
+        final long[] out = new long[PHASES.length];
+        final AtomicLong[] peak = counters();
+
+        final AtomicLong reductions = new AtomicLong();
+        final AtomicLong fanout = new AtomicLong();
+        final AtomicInteger maxDepth = new AtomicInteger();
+        final AtomicInteger maxFanout = new AtomicInteger();
+
+        private final long hits0 = cacheHits(), misses0 = cacheMisses();
+        private long hits1, misses1;
+        private int phase;
+        private long start;
+        private final Run outer; /* what was current when this started */
+
+        Run() {
+            outer = enter(this);
+        }
+
+        void begin(int phase, int termsIn)
+        {
+            this.phase = phase;
+            in[phase] = termsIn;
+            start = System.nanoTime();
+        }
+
+        void end(int termsOut)
+        {
+            nanos[phase] = System.nanoTime() - start;
+            out[phase] = termsOut;
+
+            phaseNanos[phase].addAndGet(nanos[phase]);
+            phaseIn[phase].addAndGet(in[phase]);
+            phaseOut[phase].addAndGet(termsOut);
+            raise(phasePeak[phase], peak[phase].get());
+        }
+
+        void finish()
+        {
+            hits1 = cacheHits();
+            misses1 = cacheMisses();
+            computations.incrementAndGet();
+            enter(outer);
+            last.set(this);
+        }
+
+        /* f, recording the size of each image in the current phase */
+        <A extends Comparable<A>, B extends Comparable<B>> Linear<A,B> watch(final Linear<A,B> f)
+        {
+            final AtomicLong pk = peak[phase];
+            return new Linear<A,B>() {
+                @Override public RSet<B> apply(A a) {
+                    RSet<B> ret = f.apply(a);
+                    raise(pk, ret.size());
+                    return ret;
+                }
+            };
+        }
+
+        /* the summary printed by --stats; each line starts with prefix */
+        void report(PrintWriter w, String prefix)
+        {
+            w.printf("%s%-10s %10s %10s %10s %13s%n", prefix, "phase", "ms", "terms in", "terms out", "largest image");
+            for(int i = 0; i < PHASES.length; i++)
+                w.printf("%s%-10s %10.1f %10d %10d %13d%n", prefix, PHASES[i], nanos[i] / 1e6, in[i], out[i], peak[i].get());
+
+            long r = reductions.get();
+            w.printf("%snormalizeCobar: %d reduction steps, depth <= %d, fan-out %.2f on average, %d at most%n",
+                    prefix, r, maxDepth.get(), (r == 0) ? 0.0 : (double) fanout.get() / r, maxFanout.get());
+
+            long h = hits1 - hits0, m = misses1 - misses0;
+            w.printf("%scaches: %d hits, %d misses (%.1f%% hits)%n", prefix, h, m, (h+m == 0) ? 0.0 : 100.0 * h / (h+m));
+            w.flush();
+        }
+    }
+
+    static long cacheHits()
+    {
+        long ret = 0;
+        for(Memo<?,?> m : Memo.all())
+            ret += m.hits.sum();
+        return ret;
+    }
+
+    static long cacheMisses()
+    {
+        long ret = 0;
+        for(Memo<?,?> m : Memo.all())
+            ret += m.misses.sum();
+        return ret;
+    }
+
+    private static long[] values(AtomicLong[] a, long div)
+    {
+        long[] ret = new long[a.length];
+        for(int i = 0; i < a.length; i++)
+            ret[i] = a[i].get() / div;
+        return ret;
+    }
+
+    @Override public long getComputations() { return computations.get(); }
+
+    @Override public String[] getPhases() { return PHASES.clone(); }
+    @Override public long[] getPhaseMillis() { return values(phaseNanos, 1000000); }
+    @Override public long[] getPhaseTermsIn() { return values(phaseIn, 1); }
+    @Override public long[] getPhaseTermsOut() { return values(phaseOut, 1); }
+    @Override public long[] getPhasePeakTerms() { return values(phasePeak, 1); }
+
+    @Override public long getReductions() { return reductions.get(); }
+    @Override public int getReductionMaxDepth() { return maxDepth.get(); }
+    @Override public double getReductionMeanFanout() {
+        long r = reductions.get();
+        return (r == 0) ? 0 : (double) fanout.get() / r;
+    }
+    @Override public int getReductionMaxFanout() { return maxFanout.get(); }
+
+    @Override public long getCacheHits() { return cacheHits(); }
+    @Override public long getCacheMisses() { return cacheMisses(); }
+    @Override public long getCacheEvictions() {
+        long ret = 0;
+        for(Memo<?,?> m : Memo.all())
+            ret += m.evictions.get();
+        return ret;
+    }
+    @Override public double getCacheHitRatio() {
+        long h = cacheHits(), m = cacheMisses();
+        return (h+m == 0) ? 0 : (double) h / (h+m);
+    }
+}
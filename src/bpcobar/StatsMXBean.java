@@ -0,0 +1,24 @@
+package bpcobar;
+
+/* the counters of Stats, as seen over JMX under bpcobar:type=Stats. everything is a total
+ * since startup; the per-phase arrays are indexed like getPhases(). */
+public interface StatsMXBean
+{
+    long getComputations();
+
+    String[] getPhases();
+    long[] getPhaseMillis();
+    long[] getPhaseTermsIn();
+    long[] getPhaseTermsOut();
+    long[] getPhasePeakTerms();
+
+    long getReductions();
+    int getReductionMaxDepth();
+    double getReductionMeanFanout();
+    int getReductionMaxFanout();
+
+    long getCacheHits();
+    long getCacheMisses();
+    long getCacheEvictions();
+    double getCacheHitRatio();
+}